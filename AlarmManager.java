@@ -518,6 +518,28 @@ public class AlarmManager
         }
     }
 
+	/**
+     * Set the last grant hardware for a batch of grants. Does not wait for the service.
+     *
+     */
+    public void setLastGrantHardwares(int[] uids, int[] hardwares, int count) {
+        try {
+            mService.setLastGrantHardwares(uids, hardwares, count);
+        } catch (RemoteException ex) {
+        }
+    }
+
+	/**
+     * Switch the alarm coalescing policy; live alarms are rebatched under the new one.
+     * One of MultiResourceManager.COALESCING_POLICY_*.
+     */
+    public void setCoalescingPolicy(int policy) {
+        try {
+            mService.setCoalescingPolicy(policy);
+        } catch (RemoteException ex) {
+        }
+    }
+
 	public void onScreenOn() {
         try {
             mService.onScreenOn();
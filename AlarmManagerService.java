@@ -27,12 +27,15 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.Process;
+import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
@@ -42,16 +45,18 @@ import android.os.IMultiResourceManagerService;
 import android.os.MultiResourceManager;
 import android.text.TextUtils;
 import android.util.Pair;
+import android.util.SparseArray;
 import android.util.Slog;
 import android.util.TimeUtils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -60,8 +65,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.Random;
 import java.util.TimeZone;
 
 import static android.app.AlarmManager.RTC_WAKEUP;
@@ -115,9 +123,22 @@ class AlarmManagerService extends IAlarmManager.Stub {
 	private final AlarmHandler mHandler = new AlarmHandler();
 	private ClockReceiver mClockReceiver;
 	private UninstallReceiver mUninstallReceiver;
+	private ConnectivityReceiver mConnectivityReceiver;
+	// Prices batches for coalescing. Guarded by mLock.
+	private MultiResourceManager.EnergyModel mEnergyModel = new MultiResourceManager.TailSharingEnergyModel();
+	private volatile NetworkCounterSource mNetworkCounters = new ProcNetworkCounterSource();
+	private final MultiResourceManager.StateSnapshot mSnapshot;
+	// Snapshot of the active network type, kept by mConnectivityReceiver.
+	private volatile int mNetworkType = MultiResourceManager.TYPE_NOT_CONNECTED;
+	// Active coalescing policy, switched by the resource manager's policy registry. Guarded by mLock.
+	private int mCoalescingPolicy = MultiResourceManager.COALESCING_POLICY_ORIGINAL;
+	private final CoalescingStats[] mCoalescingStats =
+		new CoalescingStats[MultiResourceManager.POLICY_STRING[MultiResourceManager.POLICY_DOMAIN_COALESCING].length];
 	private final ResultReceiver mResultReceiver = new ResultReceiver();
 	private final PendingIntent mTimeTickSender;
 	private final PendingIntent mDateChangeSender;
+	// Hardware bits of the wakeup batches triggered since the last delivery, -1 when there was none.
+	private int mDeliveredWakeupHardware = -1;
 
 	private static final String HOWARD_TAG = "HOWARD_TAG";
 	private static final String ALARM_LOG_TAG = "ALARM_LOG_TAG";
@@ -128,13 +149,14 @@ class AlarmManagerService extends IAlarmManager.Stub {
 	private static final boolean DEBUG_HOWARD_LEVEL4 = false;
 
 	private static final boolean WAKEUP_STATS = true;
-	private static boolean HOWARD_POLICY = false;
+	// Derived from mCoalescingPolicy by applyCoalescingPolicyLocked(); only written under mLock.
+	private static volatile boolean HOWARD_POLICY = false;
 	private static final boolean ENABLE_WAKELOCK_CONTROL = false;
-	private static boolean ENABLE_REBATCH_CONTROL = false;
-	private static boolean ENABLE_OVERHEAD_EXP = false;
+	private static volatile boolean ENABLE_REBATCH_CONTROL = false;
+	private static volatile boolean ENABLE_OVERHEAD_EXP = false;
 	private static final boolean OBSERVATION_APP_BEHAVIOR = false;
-	private static boolean FIXED_INTERVAL = false;
-	private static long FIXED_INTERVAL_LENGTH = 5 * 60 * 1000;
+	private static volatile boolean FIXED_INTERVAL = false;
+	private static volatile long FIXED_INTERVAL_LENGTH = 5 * 60 * 1000;
 	private static final long[] FIXED_INTERVAL_LENGTH_LIST = {29000, 30000, 59000, 60000};
 	private static final boolean EXTREME_CASE = false;
 	private static final boolean DISABLE_GOOGLE_LOCATION_ALARM = false;
@@ -172,8 +194,9 @@ class AlarmManagerService extends IAlarmManager.Stub {
 	private final LinkedList<WakeupEvent> mRecentWakeups = new LinkedList<WakeupEvent>();
 	private final long RECENT_WAKEUP_PERIOD = 1000L * 60 * 30; // half hour
 	private final static HashMap<String, WakeupEvent> mWakeupRecords = new HashMap<String, WakeupEvent>();
-	private final static HashMap<String, WakeupEvent> mSecondWakeupRecords = new HashMap<String, WakeupEvent>();
 	private final static HashMap<Integer, WakeupEvent> mWakeupRecordsByUid = new HashMap<Integer, WakeupEvent>();
+	private final static PerceivabilityClassifier mPerceivability = new PerceivabilityClassifier();
+	private final static IntervalModel mIntervalModel = new IntervalModel();
 	private Batch mNextNonWakeupBatch = null;
 	private static final float INTERVAL_RATIO = 0.96f;
 	private boolean mIsScreenOn = true;
@@ -192,8 +215,8 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		long mWindow;
 		long mRepeatInterval;
 		long mRegister2Trigger;
-		int[] mHardwareUsage = new int[MultiResourceManager.NUM_HARDWARE];
-		int mNetworkRec = 0, mNetworkSnd = 0;
+		int[] mHardwareUsage = new int[MultiResourceManager.MAX_HARDWARE];
+		long mNetworkRec = 0, mNetworkSnd = 0;
 
 		long mLastFocus;
 
@@ -205,7 +228,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 
 		public WakeupEvent(long theTime, int theUid, String theId, int type, 
 				long duration, long delay, long window, long interval, long register2Trigger, 
-				int[] hardwareUsage, long lastFocus, int networkRec, int networkSnd) {
+				int[] hardwareUsage, long lastFocus, long networkRec, long networkSnd) {
 			when = theTime;
 			uid = theUid;
 			id = new String(theId);
@@ -262,9 +285,10 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			sb.append(", NetworkSnd: ");
 			sb.append(mNetworkSnd);
 			
-			for(int i = 0; i < mHardwareUsage.length; i++){
+			final int n = MultiResourceManager.HardwareRegistry.getCount();
+			for(int i = 0; i < n; i++){
 				sb.append(", ");
-				sb.append(MultiResourceManager.HARDWARE_STRING[i]);				
+				sb.append(MultiResourceManager.HardwareRegistry.getName(i));
 				sb.append(": ");
 				sb.append(mHardwareUsage[i]);
 			}
@@ -283,9 +307,12 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		long intervalEnd;
 		long when;
 		long deadline;
-		int[] hardwareUsage;
+		int hardwareMask;       // union of the alarms' HardwareSet masks
+		long hardwareCounts;    // sum of their packed counts
 		boolean isPerceivable;
 		boolean standalone; // certain "batches" don't participate in coalescing
+		int queueIndex = -1;    // position in the BatchQueue heaps, -1 when not queued
+		int wakeupIndex = -1;
 
 		ArrayList<Alarm> alarms = new ArrayList<Alarm>();
 
@@ -296,7 +323,8 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			intervalEnd = Long.MAX_VALUE;
 			when = 0;
 			deadline = 0;
-			hardwareUsage = null;
+			hardwareMask = 0;
+			hardwareCounts = 0;
 			isPerceivable = false;
 		}
 
@@ -318,8 +346,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			isPerceivable = seed.isPerceivable();
 			deadline = isPerceivable ? end : intervalEnd;
 			when = isPerceivable? start : intervalStart;
-			hardwareUsage = null;
-			addHardwareUsage(seed.getHardwareUsage());
+			addHardware(seed.getHardware());
 			alarms.add(seed);
 		}
 
@@ -340,17 +367,9 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			return (when <= whenElapsed);
 		}
 
-		void addHardwareUsage(int[] usage){
-			if(usage == null)	return;
-			int N = MultiResourceManager.NUM_HARDWARE;
-			
-			if(hardwareUsage == null){
-				hardwareUsage = new int[N];
-			}
-
-			for(int i = 0; i < N; i++){
-				hardwareUsage[i] += usage[i];
-			}
+		void addHardware(MultiResourceManager.HardwareSet hardware){
+			hardwareMask |= hardware.mask;
+			hardwareCounts = MultiResourceManager.HardwareSet.addCounts(hardwareCounts, hardware.counts);
 		}
 
 		boolean add(Alarm alarm) {
@@ -366,7 +385,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			}
 			if(HOWARD_POLICY){
 				isPerceivable |= alarm.isPerceivable();
-				addHardwareUsage(alarm.getHardwareUsage());
+				addHardware(alarm.getHardware());
 				
 				// non-Wakeup + non-Wakeup: Trim the interval.
 				// Wakeup + Wakeup: Trim the interval.
@@ -406,7 +425,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 				
 				if(ENABLE_OVERHEAD_EXP){
 					isPerceivable |= alarm.isPerceivable();
-					addHardwareUsage(alarm.getHardwareUsage());
+					addHardware(alarm.getHardware());
 					long[] window = alarm.getWindow();
 					long[] interval = alarm.getInterval();
 					deadline = isPerceivable ? end : intervalEnd;
@@ -637,16 +656,8 @@ class AlarmManagerService extends IAlarmManager.Stub {
 				b.append(" intervalEnd="); b.append(intervalEnd);
 				b.append(" when="); b.append(when);
 				b.append(" deadline="); b.append(deadline);
-				if(hardwareUsage != null){
-					b.append(" hardwareUsage=[");
-					for(int i = 0; i < hardwareUsage.length; i++){
-						b.append(hardwareUsage[i]);
-						b.append(" ");
-					}
-					b.append("]");
-				} else {
-					b.append(" hardwareUsage=null");
-				}
+				b.append(" hardwareUsage=");
+				b.append(MultiResourceManager.HardwareSet.toString(hardwareCounts));
 				if (isPerceivable) {
 					b.append(" PERCEIVABLE");
 				}
@@ -668,7 +679,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 				if(size() != o.size())	return false;
 				if(alarms != null){
 					for(int i = 0; i < size(); i++){
-						if(!alarms.get(i).getId().equals(o.alarms.get(i).getId()))	return false;
+						if(alarms.get(i).key != o.alarms.get(i).key)	return false;
 					}
 				}
 				return true;
@@ -688,7 +699,8 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			intervalEnd = Long.MAX_VALUE;
 			when = 0;
 			deadline = 0;
-			hardwareUsage = null;
+			hardwareMask = 0;
+			hardwareCounts = 0;
 			isPerceivable = false;
 
 			alarms = new ArrayList<Alarm>();
@@ -721,11 +733,400 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		}
 	}
 
+	/**
+	 * Batches keyed by a [lo, hi] range: a treap ordered by lo whose nodes also carry the largest
+	 * hi below them, so every range overlapping a query is found in O(log n + k).
+	 * The range is copied in on insert; after a batch's bounds change it must be inserted again.
+	 */
+	static final class IntervalTree {
+		private static final class Node {
+			final Batch batch;
+			final long lo;
+			final long hi;
+			final long seq;		// orders nodes with the same lo
+			final int priority;
+			long maxHi;
+			Node left;
+			Node right;
+
+			Node(Batch batch, long lo, long hi, long seq, int priority) {
+				this.batch = batch;
+				this.lo = lo;
+				this.hi = hi;
+				this.seq = seq;
+				this.priority = priority;
+				this.maxHi = hi;
+			}
+		}
+
+		private final IdentityHashMap<Batch, Node> mNodes = new IdentityHashMap<Batch, Node>();
+		private final Random mRandom = new Random();
+		private Node mRoot;
+		private long mNextSeq;
+
+		int size() {
+			return mNodes.size();
+		}
+
+		/**
+		 * Index the batch under [lo, hi], replacing the range it was indexed under before.
+		 */
+		void insert(Batch b, long lo, long hi) {
+			remove(b);
+			Node n = new Node(b, lo, hi, mNextSeq++, mRandom.nextInt());
+			mNodes.put(b, n);
+			mRoot = insert(mRoot, n);
+		}
+
+		boolean remove(Batch b) {
+			Node n = mNodes.remove(b);
+			if (n == null) {
+				return false;
+			}
+			mRoot = remove(mRoot, n);
+			return true;
+		}
+
+		void clear() {
+			mNodes.clear();
+			mRoot = null;
+		}
+
+		/**
+		 * Append every batch whose range overlaps [lo, hi] to out, in no particular order.
+		 */
+		void query(long lo, long hi, ArrayList<Batch> out) {
+			query(mRoot, lo, hi, out);
+		}
+
+		private static void query(Node n, long lo, long hi, ArrayList<Batch> out) {
+			while (n != null && n.maxHi >= lo) {
+				query(n.left, lo, hi, out);
+				if (n.lo > hi) {
+					// Everything to the right starts even later.
+					return;
+				}
+				if (n.hi >= lo) {
+					out.add(n.batch);
+				}
+				n = n.right;
+			}
+		}
+
+		private static int compare(Node a, Node b) {
+			if (a.lo != b.lo) {
+				return a.lo < b.lo ? -1 : 1;
+			}
+			return a.seq < b.seq ? -1 : (a.seq > b.seq ? 1 : 0);
+		}
+
+		private static Node insert(Node root, Node n) {
+			if (root == null) {
+				return n;
+			}
+			if (compare(n, root) < 0) {
+				root.left = insert(root.left, n);
+				if (root.left.priority > root.priority) {
+					return rotateRight(root);
+				}
+			} else {
+				root.right = insert(root.right, n);
+				if (root.right.priority > root.priority) {
+					return rotateLeft(root);
+				}
+			}
+			update(root);
+			return root;
+		}
+
+		private static Node remove(Node root, Node n) {
+			if (root == null) {
+				return null;
+			}
+			if (root == n) {
+				return merge(root.left, root.right);
+			}
+			if (compare(n, root) < 0) {
+				root.left = remove(root.left, n);
+			} else {
+				root.right = remove(root.right, n);
+			}
+			update(root);
+			return root;
+		}
+
+		// Every node of a orders before every node of b.
+		private static Node merge(Node a, Node b) {
+			if (a == null) {
+				return b;
+			}
+			if (b == null) {
+				return a;
+			}
+			if (a.priority > b.priority) {
+				a.right = merge(a.right, b);
+				update(a);
+				return a;
+			}
+			b.left = merge(a, b.left);
+			update(b);
+			return b;
+		}
+
+		private static Node rotateRight(Node n) {
+			Node l = n.left;
+			n.left = l.right;
+			l.right = n;
+			update(n);
+			update(l);
+			return l;
+		}
+
+		private static Node rotateLeft(Node n) {
+			Node r = n.right;
+			n.right = r.left;
+			r.left = n;
+			update(n);
+			update(r);
+			return r;
+		}
+
+		private static void update(Node n) {
+			long maxHi = n.hi;
+			if (n.left != null && n.left.maxHi > maxHi) {
+				maxHi = n.left.maxHi;
+			}
+			if (n.right != null && n.right.maxHi > maxHi) {
+				maxHi = n.right.maxHi;
+			}
+			n.maxHi = maxHi;
+		}
+	}
+
+	/**
+	 * The pending batches. An indexed binary min-heap in sBatchOrder, plus a second one holding
+	 * only the batches with wakeup alarms, so the next batch and the next wakeup batch are O(1)
+	 * and add, remove, poll and re-keying are O(log n). Each batch records its position in both
+	 * heaps. The batches are also indexed by window and by interval for coalescing.
+	 * After a queued batch changes, update() must be called before the next operation.
+	 */
+	static final class BatchQueue {
+		private Batch[] mHeap = new Batch[16];
+		private int mSize;
+		private Batch[] mWakeupHeap = new Batch[16];
+		private int mWakeupSize;
+		private final IntervalTree mWindows = new IntervalTree();
+		private final IntervalTree mIntervals = new IntervalTree();
+
+		int size() {
+			return mSize;
+		}
+
+		Batch peek() {
+			return mSize > 0 ? mHeap[0] : null;
+		}
+
+		Batch peekWakeup() {
+			return mWakeupSize > 0 ? mWakeupHeap[0] : null;
+		}
+
+		/**
+		 * Returns true if the batch is now at the head.
+		 */
+		boolean add(Batch b) {
+			if (mSize == mHeap.length) {
+				mHeap = Arrays.copyOf(mHeap, mSize * 2);
+			}
+			mHeap[mSize] = b;
+			siftUp(mHeap, mSize++, false);
+			updateWakeup(b);
+			mWindows.insert(b, b.start, b.end);
+			mIntervals.insert(b, b.intervalStart, b.intervalEnd);
+			return mHeap[0] == b;
+		}
+
+		boolean remove(Batch b) {
+			final int i = b.queueIndex;
+			if (i < 0 || i >= mSize || mHeap[i] != b) {
+				return false;
+			}
+			mSize = removeAt(mHeap, mSize, i, false);
+			if (b.wakeupIndex >= 0) {
+				mWakeupSize = removeAt(mWakeupHeap, mWakeupSize, b.wakeupIndex, true);
+			}
+			mWindows.remove(b);
+			mIntervals.remove(b);
+			return true;
+		}
+
+		Batch poll() {
+			final Batch b = peek();
+			if (b != null) {
+				remove(b);
+			}
+			return b;
+		}
+
+		/**
+		 * Restore the order and the indexes after the bounds or the alarms of a queued batch
+		 * changed. Returns true if the batch is now at the head.
+		 */
+		boolean update(Batch b) {
+			final int i = b.queueIndex;
+			siftDown(mHeap, mSize, i, false);
+			if (mHeap[i] == b) {
+				siftUp(mHeap, i, false);
+			}
+			updateWakeup(b);
+			mWindows.insert(b, b.start, b.end);
+			mIntervals.insert(b, b.intervalStart, b.intervalEnd);
+			return mHeap[0] == b;
+		}
+
+		void clear() {
+			for (int i = 0; i < mSize; i++) {
+				mHeap[i].queueIndex = -1;
+				mHeap[i] = null;
+			}
+			for (int i = 0; i < mWakeupSize; i++) {
+				mWakeupHeap[i].wakeupIndex = -1;
+				mWakeupHeap[i] = null;
+			}
+			mSize = 0;
+			mWakeupSize = 0;
+			mWindows.clear();
+			mIntervals.clear();
+		}
+
+		/**
+		 * The batches in heap order, for walks that do not care about delivery order.
+		 */
+		Batch[] toArray() {
+			return Arrays.copyOf(mHeap, mSize);
+		}
+
+		/**
+		 * The batches in delivery order. O(n log n), for dumps and rebatching.
+		 */
+		ArrayList<Batch> toSortedList() {
+			ArrayList<Batch> list = new ArrayList<Batch>(Arrays.asList(toArray()));
+			Collections.sort(list, sBatchOrder);
+			return list;
+		}
+
+		/**
+		 * Append the batches whose window overlaps [start, end] to out.
+		 */
+		void queryWindows(long start, long end, ArrayList<Batch> out) {
+			mWindows.query(start, end, out);
+		}
+
+		/**
+		 * Append the batches whose interval overlaps [start, end] to out.
+		 */
+		void queryIntervals(long start, long end, ArrayList<Batch> out) {
+			mIntervals.query(start, end, out);
+		}
+
+		boolean isValid() {
+			for (int i = 1; i < mSize; i++) {
+				if (sBatchOrder.compare(mHeap[(i - 1) >>> 1], mHeap[i]) > 0) return false;
+			}
+			for (int i = 1; i < mWakeupSize; i++) {
+				if (sBatchOrder.compare(mWakeupHeap[(i - 1) >>> 1], mWakeupHeap[i]) > 0) return false;
+			}
+			return true;
+		}
+
+		private void updateWakeup(Batch b) {
+			final boolean wakeup = b.hasWakeups();
+			if (b.wakeupIndex >= 0) {
+				if (!wakeup) {
+					mWakeupSize = removeAt(mWakeupHeap, mWakeupSize, b.wakeupIndex, true);
+					return;
+				}
+				final int i = b.wakeupIndex;
+				siftDown(mWakeupHeap, mWakeupSize, i, true);
+				if (mWakeupHeap[i] == b) {
+					siftUp(mWakeupHeap, i, true);
+				}
+			} else if (wakeup) {
+				if (mWakeupSize == mWakeupHeap.length) {
+					mWakeupHeap = Arrays.copyOf(mWakeupHeap, mWakeupSize * 2);
+				}
+				mWakeupHeap[mWakeupSize] = b;
+				siftUp(mWakeupHeap, mWakeupSize++, true);
+			}
+		}
+
+		// Returns the new size of the heap.
+		private static int removeAt(Batch[] heap, int size, int i, boolean wakeup) {
+			setIndex(heap[i], wakeup, -1);
+			size--;
+			if (i != size) {
+				final Batch last = heap[size];
+				heap[i] = last;
+				siftDown(heap, size, i, wakeup);
+				if (heap[i] == last) {
+					siftUp(heap, i, wakeup);
+				}
+			}
+			heap[size] = null;
+			return size;
+		}
+
+		private static void siftUp(Batch[] heap, int i, boolean wakeup) {
+			final Batch b = heap[i];
+			while (i > 0) {
+				final int parent = (i - 1) >>> 1;
+				if (sBatchOrder.compare(heap[parent], b) <= 0) {
+					break;
+				}
+				heap[i] = heap[parent];
+				setIndex(heap[i], wakeup, i);
+				i = parent;
+			}
+			heap[i] = b;
+			setIndex(b, wakeup, i);
+		}
+
+		private static void siftDown(Batch[] heap, int size, int i, boolean wakeup) {
+			final Batch b = heap[i];
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && sBatchOrder.compare(heap[child + 1], heap[child]) < 0) {
+					child++;
+				}
+				if (sBatchOrder.compare(b, heap[child]) <= 0) {
+					break;
+				}
+				heap[i] = heap[child];
+				setIndex(heap[i], wakeup, i);
+				i = child;
+			}
+			heap[i] = b;
+			setIndex(b, wakeup, i);
+		}
+
+		private static void setIndex(Batch b, boolean wakeup, int i) {
+			if (wakeup) {
+				b.wakeupIndex = i;
+			} else {
+				b.queueIndex = i;
+			}
+		}
+	}
+
 	// minimum recurrence period or alarm futurity for us to be able to fuzz it
 	private static final long MIN_FUZZABLE_INTERVAL = 10000;
 	private static final BatchTimeOrder sBatchOrder = new BatchTimeOrder();
-	private final ArrayList<Batch> mAlarmBatches = new ArrayList<Batch>();
-	private final ArrayList<Alarm> mAlarmsInOrder = new ArrayList<Alarm>();
+	private final BatchQueue mAlarmBatches = new BatchQueue();
+	private final ArrayList<Batch> mCoalesceCandidates = new ArrayList<Batch>();
+	// The pending alarm of each operation; setImplLocked() keeps at most one per operation.
+	private final HashMap<PendingIntent, Alarm> mAlarmsByOperation = new HashMap<PendingIntent, Alarm>();
 
 	static long convertToElapsed(long when, int type) {
 		final boolean isRtc = (type == RTC || type == RTC_WAKEUP);
@@ -751,28 +1152,23 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		return triggerAtTime + (long)(.75 * futurity);
 	}
 
-	// returns true if the batch was added at the head
-	static boolean addBatchLocked(ArrayList<Batch> list, Batch newBatch) {
-		int index = Collections.binarySearch(list, newBatch, sBatchOrder);
-		if (index < 0) {
-			index = 0 - index - 1;
-		}
-		list.add(index, newBatch);
-		return (index == 0);
-	}
-
-	// Return the index of the matching batch, or -1 if none found.
-	int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
-		final int N = mAlarmBatches.size();
-		
+	// Return the earliest batch that can hold the window, or null if none found.
+	Batch attemptCoalesceLocked(long whenElapsed, long maxWhen) {
+		// canHold() is a window overlap, so only the overlapping batches are looked at.
+		final ArrayList<Batch> candidates = mCoalesceCandidates;
+		candidates.clear();
+		mAlarmBatches.queryWindows(whenElapsed, maxWhen, candidates);
+		Batch first = null;
+		final int N = candidates.size();
 		for (int i = 0; i < N; i++) {
-			Batch b = mAlarmBatches.get(i);
-			if (!b.standalone && b.canHold(whenElapsed, maxWhen)) {
-				return i;
+			Batch b = candidates.get(i);
+			if (!b.standalone && (first == null || sBatchOrder.compare(b, first) < 0)) {
+				first = b;
 			}
 		}
+		candidates.clear();
 
-		return -1;
+		return first;
 	}
 
 	// The RTC clock has moved arbitrarily, so we need to recalculate all the batching
@@ -790,31 +1186,60 @@ class AlarmManagerService extends IAlarmManager.Stub {
 	}
 
 	void rebatchAllAlarmsLocked(boolean doValidate) {
-		ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
+		// Keep the delivery order of the old batches.
+		ArrayList<Alarm> oldSet = new ArrayList<Alarm>(mAlarmsByOperation.size());
+		for (Batch batch : mAlarmBatches.toSortedList()) {
+			oldSet.addAll(batch.alarms);
+		}
+		rebatchLocked(oldSet, null, doValidate);
+	}
+
+	/**
+	 * Rebuild every batch from oldSet in one pass: recompute the windows against the current
+	 * clock, sort once, place each alarm with the same coalescing rules as set(), and program
+	 * the kernel once at the end. Nothing is removed, validated or rescheduled per alarm.
+	 * @param order the order to place the alarms in, or null to keep the order of oldSet.
+	 */
+	private void rebatchLocked(ArrayList<Alarm> oldSet, Comparator<Alarm> order, boolean doValidate) {
 		mAlarmBatches.clear();
+		mAlarmsByOperation.clear();
+
 		final long nowElapsed = SystemClock.elapsedRealtime();
-		final int oldBatches = oldSet.size();
-		for (int batchNum = 0; batchNum < oldBatches; batchNum++) {
-			Batch batch = oldSet.get(batchNum);
-			final int N = batch.size();
-			for (int i = 0; i < N; i++) {
-			Alarm a = batch.get(i);
-				long whenElapsed = convertToElapsed(a.when, a.type);
-				final long maxElapsed;
-				if (a.whenElapsed == a.maxWhen) {
-					// Exact
-					maxElapsed = whenElapsed;
-				} else {
-					// Not exact.  Preserve any explicit window, otherwise recalculate
-					// the window based on the alarm's new futurity.  Note that this
-					// reflects a policy of preferring timely to deferred delivery.
-					maxElapsed = (a.windowLength > 0)
-						? (whenElapsed + a.windowLength)
-						: maxTriggerTime(nowElapsed, whenElapsed, a.repeatInterval);
-				}
-				setImplLocked(a.type, a.when, whenElapsed, a.windowLength, maxElapsed,
-						a.repeatInterval, a.operation, batch.standalone, doValidate, a.workSource);
+		final int N = oldSet.size();
+		final ArrayList<Alarm> alarms = new ArrayList<Alarm>(N);
+		for (int i = 0; i < N; i++) {
+			Alarm a = oldSet.get(i);
+			long whenElapsed = convertToElapsed(a.when, a.type);
+			final long maxElapsed;
+			if (a.whenElapsed == a.maxWhen) {
+				// Exact
+				maxElapsed = whenElapsed;
+			} else {
+				// Not exact.  Preserve any explicit window, otherwise recalculate
+				// the window based on the alarm's new futurity.  Note that this
+				// reflects a policy of preferring timely to deferred delivery.
+				maxElapsed = (a.windowLength > 0)
+					? (whenElapsed + a.windowLength)
+					: maxTriggerTime(nowElapsed, whenElapsed, a.repeatInterval);
 			}
+			alarms.add(new Alarm(a.type, a.when, whenElapsed, a.windowLength, maxElapsed,
+					a.repeatInterval, a.operation, a.workSource, nowElapsed, a.isStandalone, a.key));
+		}
+		if (order != null) {
+			Collections.sort(alarms, order);
+		}
+
+		for (int i = 0; i < N; i++) {
+			addAlarmLocked(alarms.get(i));
+		}
+
+		if (DEBUG_VALIDATE && doValidate) {
+			validateConsistencyLocked();
+		}
+		if(HOWARD_POLICY){
+			rescheduleKernelAlarmsLockedHoward();
+		} else {
+			rescheduleKernelAlarmsLocked();
 		}
 	}
 
@@ -853,8 +1278,9 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		int nesting;
 
 		// Member variable for recent wake up event log
-		int tcpReceive;
-		int tcpSend;
+		int uid;
+		long tcpReceive = -1;	// -1 until the baseline is sampled
+		long tcpSend = -1;
 		long startRtc;
 		long delay;
 		long window;
@@ -862,6 +1288,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		long interval;
 		long register2Trigger;
 		String id;
+		AlarmKey alarmKey;
 
 		FilterStats(BroadcastStats broadcastStats, Pair<String, ComponentName> target) {
 			mBroadcastStats = broadcastStats;
@@ -869,41 +1296,14 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		}
 
 		/**
-		 * Read an entry in /proc.
-		 */
-		private String readProc(String path) {
-			String procPath = ("/proc/");
-
-			procPath += path;
-
-			try {
-				BufferedReader mounts = new BufferedReader(new FileReader(procPath));
-				String line, content = new String();
-
-				while ((line = mounts.readLine()) != null) {
-					content += line;
-				}
-
-				mounts.close();
-				return content;
-			}
-			catch (FileNotFoundException e) {
-				Slog.d(HOWARD_TAG, "Cannot find " + procPath + "...");
-				return null;
-			}
-			catch (IOException e) {
-				Slog.d(HOWARD_TAG, "Ran into problems reading " + procPath + "...");
-			}
-			return null;
-		}
-
-		/**
-		 * Initialize record before execute the alarm event.
+		 * Initialize record before execute the alarm event. The network baseline, sampled
+		 * before the broadcast, is set by setNetworkBaseline().
 		 */
 		public void initialRecord(long nowRtc, long nowELAPSED, Alarm alarm) {
-			int uid =  alarm.operation.getCreatorUid();
+			uid =  alarm.operation.getCreatorUid();
 			id = alarm.getId();
-			Slog.v(HOWARD_TAG, "Start Alarm: id: " + alarm.getId());
+			alarmKey = alarm.key;
+			Slog.v(HOWARD_TAG, "Start Alarm: id: " + id);
 			startRtc = nowRtc;
 			window = alarm.windowLength;
 			type = alarm.type;
@@ -911,31 +1311,25 @@ class AlarmManagerService extends IAlarmManager.Stub {
 				nowELAPSED - alarm.when : nowRtc - alarm.when;
 			interval = alarm.repeatInterval;
 			register2Trigger = alarm.register2Trigger;
+			tcpReceive = tcpSend = -1;
+		}
 
-			String str = new String("uid_stat/" + uid + "/tcp_rcv");
-			str = readProc(str);
-			tcpReceive = str == null ? 0 : Integer.parseInt(str);
-
-			str = new String("uid_stat/" + uid + "/tcp_snd");
-			str = readProc(str);
-			tcpSend = str == null ? 0 : Integer.parseInt(str);
+		public void setNetworkBaseline(long rcv, long snd) {
+			if (nesting > 0 && tcpReceive < 0) {
+				tcpReceive = rcv;
+				tcpSend = snd;
+			}
 		}
 
 		/**
 		 * Calculate each variable and add the record to history.
+		 * @param tcpR, tcpS counters of the creator uid sampled when the broadcast finished,
+		 *        -1 if the read failed.
 		 */
-		public WakeupEvent finishRecord(long stopRtc, PendingIntent pi) {
+		public WakeupEvent finishRecord(long stopRtc, PendingIntent pi, long tcpR, long tcpS) {
 			int uid = pi.getCreatorUid();
 
-			String str = new String("uid_stat/" + uid + "/tcp_rcv");
-			str = readProc(str);
-			int tcpR = str == null ? 0 : Integer.parseInt(str);
-
-			str = new String("uid_stat/" + uid + "/tcp_snd");
-			str = readProc(str);
-			int tcpS = str == null ? 0 : Integer.parseInt(str);
-
-			int[] hardwareUsage = new int[MultiResourceManager.NUM_HARDWARE];
+			int[] hardwareUsage = new int[MultiResourceManager.MAX_HARDWARE];
 			long lastFocus = 0;
 
 			if(isExpApp(pi)){
@@ -943,13 +1337,18 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			} else {
 				IMultiResourceManagerService mrm = IMultiResourceManagerService.Stub.asInterface(ServiceManager.getService(Context.RESOURCE_MANAGER_SERVICE));
 
-				hardwareUsage[0] = tcpR - tcpReceive + tcpS - tcpSend;
-				hardwareUsage[0] += getOfflineSupport(id, 2);
+				// Traffic counts only when both ends were sampled.
+				hardwareUsage[0] = tcpReceive < 0 || tcpR < 0 ? 0 :
+					(int)Math.max(0, Math.min(tcpR - tcpReceive + tcpS - tcpSend, Integer.MAX_VALUE));
+				hardwareUsage[0] += alarmKey != null ? alarmKey.offlineNetwork : 0;
 				try {
-					for(int i = 1; i < hardwareUsage.length; i++){
-						hardwareUsage[i] = 	mrm.getIsGrant(uid, startRtc, stopRtc, i) ? 1 : 0;
+					// Network use is measured above, every other component comes from the grants.
+					final int grants = mrm.getGrantMask(uid, startRtc, stopRtc)
+						& ~(1 << MultiResourceManager.HARDWARE_NETWORK);
+					for(int i = 0; i < hardwareUsage.length; i++){
+						if((grants & (1 << i)) != 0)	hardwareUsage[i] = 1;
 					}
-					lastFocus = mrm.getLastFocusTime(uid);
+					lastFocus = MultiResourceManager.getLastFocusTime(uid);
 				} catch(Exception e) {
 					e.printStackTrace();
 					return null;
@@ -960,6 +1359,418 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		}
 	}
 
+	/**
+	 * Delivery counters of one coalescing policy, for comparing policies on the same device.
+	 */
+	private static final class CoalescingStats {
+		long activeTime;
+		long activeSince = -1;
+		long batches;
+		long wakeupBatches;
+		long alarms;
+		double energy;
+
+		void start(long nowElapsed) {
+			activeSince = nowElapsed;
+		}
+
+		void stop(long nowElapsed) {
+			if (activeSince >= 0) {
+				activeTime += nowElapsed - activeSince;
+				activeSince = -1;
+			}
+		}
+
+		void dump(PrintWriter pw, long nowElapsed) {
+			pw.print("active="); pw.print((activeTime + (activeSince >= 0 ? nowElapsed - activeSince : 0)) / 1000);
+			pw.print("s batches="); pw.print(batches);
+			pw.print(" wakeups="); pw.print(wakeupBatches);
+			pw.print(" alarms="); pw.print(alarms);
+			pw.print(" energy="); pw.println((float)energy);
+		}
+	}
+
+	/**
+	 * Source of the cumulative per-uid TCP byte counters used to attribute network usage to
+	 * alarms. Replaceable so that the attribution can be driven by fake counters.
+	 */
+	interface NetworkCounterSource {
+		/**
+		 * Fill out[0] with the received and out[1] with the sent bytes of uid.
+		 * @return false if the uid has no counters yet.
+		 */
+		boolean read(int uid, long[] out);
+	}
+
+	/**
+	 * Reads /proc/uid_stat/<uid>/tcp_rcv and tcp_snd. The files of recently read uids stay open
+	 * and are re-read at offset 0 into one direct buffer, and the digits are parsed in place, so
+	 * a sample allocates nothing once the uid's files are open.
+	 */
+	static final class ProcNetworkCounterSource implements NetworkCounterSource {
+		private static final int MAX_OPEN_UIDS = 64;
+
+		private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(32);
+		private final SparseArray<FileChannel[]> mChannels = new SparseArray<FileChannel[]>();
+
+		public synchronized boolean read(int uid, long[] out) {
+			FileChannel[] channels = mChannels.get(uid);
+			try {
+				if (channels == null) {
+					if (mChannels.size() >= MAX_OPEN_UIDS) {
+						closeAll();
+					}
+					final FileChannel received = open(uid, "tcp_rcv");
+					final FileChannel sent;
+					try {
+						sent = open(uid, "tcp_snd");
+					} catch (IOException e) {
+						closeQuietly(received);
+						throw e;
+					}
+					channels = new FileChannel[] { received, sent };
+					mChannels.put(uid, channels);
+				}
+				out[0] = readLong(channels[0]);
+				out[1] = readLong(channels[1]);
+				return true;
+			} catch (FileNotFoundException e) {
+				// The kernel creates the entry on the uid's first socket.
+				return false;
+			} catch (IOException e) {
+				Slog.d(HOWARD_TAG, "Cannot read uid_stat of " + uid + ": " + e);
+				if (channels != null) {
+					close(channels);
+					mChannels.remove(uid);
+				}
+				return false;
+			}
+		}
+
+		private long readLong(FileChannel channel) throws IOException {
+			mBuffer.clear();
+			final int n = channel.read(mBuffer, 0);
+			long value = 0;
+			for (int i = 0; i < n; i++) {
+				final int digit = mBuffer.get(i) - '0';
+				if (digit < 0 || digit > 9) break;
+				value = value * 10 + digit;
+			}
+			return value;
+		}
+
+		private void closeAll() {
+			for (int i = 0; i < mChannels.size(); i++) {
+				close(mChannels.valueAt(i));
+			}
+			mChannels.clear();
+		}
+
+		private static FileChannel open(int uid, String name) throws IOException {
+			return new RandomAccessFile("/proc/uid_stat/" + uid + "/" + name, "r").getChannel();
+		}
+
+		private static void close(FileChannel[] channels) {
+			for (FileChannel channel : channels) {
+				closeQuietly(channel);
+			}
+		}
+
+		private static void closeQuietly(FileChannel channel) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Online perceivability estimate per uid and per alarm id.
+	 *
+	 * Every finished wakeup adds one unit of evidence, perceivable or not, to its uid and its
+	 * alarm id; evidence decays with DECAY_HALF_LIFE. A late perceivable grant for the last
+	 * wakeup of a uid moves that wakeup's unit to the perceivable side. The decision has
+	 * hysteresis: an id turns perceivable once the perceivable share reaches ENTER_RATIO, and
+	 * only turns back after the share drops to EXIT_RATIO with at least MIN_EVIDENCE units,
+	 * since a wrong "not perceivable" costs the user a dropped wakelock.
+	 *
+	 * Decisions are published as bitmaps indexed by app id and by alarm slot, so readers need
+	 * neither the lock nor a map lookup.
+	 */
+	private static final class PerceivabilityClassifier {
+		private static final long DECAY_HALF_LIFE = 6 * 60 * 60 * 1000L;
+		private static final double ENTER_RATIO = 0.5;
+		private static final double EXIT_RATIO = 0.2;
+		private static final double MIN_EVIDENCE = 3.0;
+		static final int NO_SLOT = -1;
+
+		private final Evidence mUids = new Evidence();
+		private final Evidence mAlarms = new Evidence();
+		private volatile int[] mUidBits = new int[0];
+		private volatile int[] mAlarmBits = new int[0];
+		private MultiResourceManager.StateSnapshot mSnapshot;
+
+		// Last wakeup of each app id, for grants reported after the wakeup was recorded.
+		private int[] mLastAlarmSlot = new int[0];
+		private boolean[] mLastCounted = new boolean[0];
+
+		private static final class Evidence {
+			double[] perceivable = new double[0];
+			double[] total = new double[0];
+			long[] time = new long[0];
+
+			void ensure(int i) {
+				if(i < total.length)	return;
+				final int length = Math.max(i + 1, Math.max(total.length * 2, 64));
+				perceivable = Arrays.copyOf(perceivable, length);
+				total = Arrays.copyOf(total, length);
+				time = Arrays.copyOf(time, length);
+			}
+
+			void decay(int i, long now) {
+				if(now > time[i] && total[i] > 0) {
+					final double f = Math.pow(0.5, (double)(now - time[i]) / DECAY_HALF_LIFE);
+					perceivable[i] *= f;
+					total[i] *= f;
+				}
+				time[i] = now;
+			}
+
+			boolean decide(int i, boolean current) {
+				final double ratio = perceivable[i] / total[i];
+				if(!current)	return ratio >= ENTER_RATIO;
+				return !(ratio <= EXIT_RATIO && total[i] >= MIN_EVIDENCE);
+			}
+		}
+
+		private static int index(int uid) {
+			return UserHandle.getAppId(uid);
+		}
+
+		private static boolean get(int[] bits, int i) {
+			return i >= 0 && (i >> 5) < bits.length && (bits[i >> 5] & (1 << i)) != 0;
+		}
+
+		private static int[] set(int[] bits, int i, boolean value) {
+			if((i >> 5) >= bits.length) {
+				if(!value)	return bits;
+				bits = Arrays.copyOf(bits, Math.max((i >> 5) + 1, bits.length * 2));
+			}
+			if(value) bits[i >> 5] |= 1 << i; else bits[i >> 5] &= ~(1 << i);
+			return bits;
+		}
+
+		/**
+		 * Also publish the per-uid decisions to the shared state snapshot.
+		 */
+		synchronized void setSnapshot(MultiResourceManager.StateSnapshot snapshot) {
+			mSnapshot = snapshot;
+			if(snapshot == null)	return;
+			for(int u = 0; u < mUids.total.length; u++) {
+				if(mUids.total[u] > 0)	snapshot.setPerceivable(u, get(mUidBits, u));
+			}
+		}
+
+		boolean isUidPerceivable(int uid) {
+			return get(mUidBits, index(uid));
+		}
+
+		boolean isAlarmPerceivable(int slot) {
+			return get(mAlarmBits, slot);
+		}
+
+		/**
+		 * Count one finished wakeup. feedback is false for wakeups whose hardware is not
+		 * reported by the resource manager, which then must not reclassify them.
+		 */
+		synchronized void noteWakeup(int uid, int a, int[] hardwareUsage, boolean feedback, long now) {
+			final boolean perceivable = MultiResourceManager.isPerceivable(hardwareUsage);
+			final int u = index(uid);
+
+			if(u >= mLastAlarmSlot.length) {
+				final int length = Math.max(u + 1, Math.max(mLastAlarmSlot.length * 2, 64));
+				mLastAlarmSlot = Arrays.copyOf(mLastAlarmSlot, length);
+				mLastCounted = Arrays.copyOf(mLastCounted, length);
+			}
+			mLastAlarmSlot[u] = feedback ? a : NO_SLOT;
+			mLastCounted[u] = perceivable;
+
+			mUids.ensure(u);
+			mAlarms.ensure(a);
+			mUidBits = add(mUids, mUidBits, u, perceivable ? 1 : 0, 1, now);
+			mAlarmBits = add(mAlarms, mAlarmBits, a, perceivable ? 1 : 0, 1, now);
+			if(mSnapshot != null)	mSnapshot.setPerceivable(uid, get(mUidBits, u));
+		}
+
+		/**
+		 * A perceivable hardware was granted to uid after its last wakeup was recorded.
+		 */
+		synchronized void noteGrant(int uid, int hardware, long now) {
+			if(!MultiResourceManager.HardwareRegistry.isPerceivable(hardware)) {
+				return;
+			}
+			final int u = index(uid);
+			if(u >= mLastAlarmSlot.length || mLastAlarmSlot[u] == NO_SLOT || mLastCounted[u])	return;
+			mLastCounted[u] = true;
+			mUidBits = add(mUids, mUidBits, u, 1, 0, now);
+			mAlarmBits = add(mAlarms, mAlarmBits, mLastAlarmSlot[u], 1, 0, now);
+			if(mSnapshot != null)	mSnapshot.setPerceivable(uid, get(mUidBits, u));
+		}
+
+		/**
+		 * Returns the bitmap to store back; re-assigning the volatile field publishes the
+		 * in-place update to lock-free readers.
+		 */
+		private static int[] add(Evidence e, int[] bits, int i, double perceivable, double total, long now) {
+			e.decay(i, now);
+			e.perceivable[i] += perceivable;
+			e.total[i] += total;
+			return set(bits, i, e.decide(i, get(bits, i)));
+		}
+
+		synchronized void dump(PrintWriter pw, long now) {
+			pw.print("Perceivable uids:");
+			for(int u = 0; u < mUids.total.length; u++) {
+				if(mUids.total[u] == 0)	continue;
+				final double f = Math.pow(0.5, (double)(now - mUids.time[u]) / DECAY_HALF_LIFE);
+				pw.print(" "); pw.print(u); pw.print(get(mUidBits, u) ? "+" : "-");
+				pw.print((float)(mUids.perceivable[u] * f)); pw.print("/"); pw.print((float)(mUids.total[u] * f));
+			}
+			pw.println();
+			pw.println("Perceivable alarms:");
+			for(int a = 0; a < mAlarms.total.length; a++) {
+				if(mAlarms.total[a] == 0)	continue;
+				final double f = Math.pow(0.5, (double)(now - mAlarms.time[a]) / DECAY_HALF_LIFE);
+				pw.print("  "); pw.print(get(mAlarmBits, a) ? "+ " : "- ");
+				pw.print((float)(mAlarms.perceivable[a] * f)); pw.print("/"); pw.print((float)(mAlarms.total[a] * f));
+				pw.print(" "); pw.println(getAlarmId(a));
+			}
+		}
+	}
+
+	/**
+	 * Online estimate of how often each alarm id fires, from the nominal trigger times of its
+	 * deliveries. Keeps an EWMA of the inter-arrival interval, its variance, and a decayed
+	 * histogram over power-of-two buckets.
+	 *
+	 * The predicted interval is the mean when the arrivals are regular. When they are not, it is
+	 * the lower quartile of the histogram, so that an alarm is not deferred by a period it rarely
+	 * reaches. The tolerance is the spread of the app's own schedule: delaying a delivery by less
+	 * than that cannot be told apart from the app's jitter. Until MIN_SAMPLES arrivals are seen
+	 * the hand-tuned OFFLINE_SUPPORT interval, if any, is used instead.
+	 *
+	 * Predictions are recomputed on each arrival, so alarms only read a slot.
+	 */
+	private static final class IntervalModel {
+		private static final float ALPHA = 0.25f;
+		private static final int MIN_SAMPLES = 3;
+		private static final float REGULAR_CV = 0.25f;
+		private static final float MAX_TOLERANCE_RATIO = 0.75f;
+		private static final long MAX_SAMPLE = AlarmManager.INTERVAL_DAY;
+		private static final long BUCKET_BASE = 15 * 1000L;
+		private static final int NUM_BUCKETS = 16; // [0, 15s), [15s, 30s), ... [2.8d, 5.7d)
+
+		private long[] mLast = new long[0];
+		private double[] mMean = new double[0];
+		private double[] mVariance = new double[0];
+		private int[] mSamples = new int[0];
+		private float[] mHistogram = new float[0];
+		private long[] mInterval = new long[0];
+		private long[] mTolerance = new long[0];
+
+		private void ensure(int slot) {
+			if(slot < mLast.length)	return;
+			final int length = Math.max(slot + 1, Math.max(mLast.length * 2, 64));
+			mLast = Arrays.copyOf(mLast, length);
+			mMean = Arrays.copyOf(mMean, length);
+			mVariance = Arrays.copyOf(mVariance, length);
+			mSamples = Arrays.copyOf(mSamples, length);
+			mHistogram = Arrays.copyOf(mHistogram, length * NUM_BUCKETS);
+			mInterval = Arrays.copyOf(mInterval, length);
+			mTolerance = Arrays.copyOf(mTolerance, length);
+		}
+
+		private static int bucket(long interval) {
+			final int b = 64 - Long.numberOfLeadingZeros(interval / BUCKET_BASE);
+			return Math.min(b, NUM_BUCKETS - 1);
+		}
+
+		private static long bucketStart(int b) {
+			return b == 0 ? 0 : BUCKET_BASE << (b - 1);
+		}
+
+		/**
+		 * An alarm of this slot was delivered for the nominal time whenElapsed.
+		 */
+		synchronized void noteArrival(int slot, long whenElapsed) {
+			ensure(slot);
+			final long last = mLast[slot];
+			mLast[slot] = whenElapsed;
+			if(last == 0)	return;
+			final long sample = whenElapsed - last;
+			if(sample <= 0 || sample > MAX_SAMPLE)	return;
+
+			if(mSamples[slot] == 0) {
+				mMean[slot] = sample;
+			} else {
+				final double diff = sample - mMean[slot];
+				mMean[slot] += ALPHA * diff;
+				mVariance[slot] = (1 - ALPHA) * (mVariance[slot] + ALPHA * diff * diff);
+			}
+			mSamples[slot]++;
+
+			final int base = slot * NUM_BUCKETS;
+			for(int b = 0; b < NUM_BUCKETS; b++) {
+				mHistogram[base + b] *= 1 - ALPHA;
+			}
+			mHistogram[base + bucket(sample)] += ALPHA;
+
+			final double mean = mMean[slot];
+			final double deviation = Math.sqrt(mVariance[slot]);
+			if(deviation <= REGULAR_CV * mean) {
+				mInterval[slot] = (long)mean;
+			} else {
+				float total = 0, sum = 0;
+				for(int b = 0; b < NUM_BUCKETS; b++) {
+					total += mHistogram[base + b];
+				}
+				int b = 0;
+				for(; b < NUM_BUCKETS - 1; b++) {
+					sum += mHistogram[base + b];
+					if(sum >= total / 4)	break;
+				}
+				mInterval[slot] = Math.min((long)mean, Math.max(bucketStart(b), BUCKET_BASE));
+			}
+			mTolerance[slot] = Math.min((long)(2 * deviation), (long)(MAX_TOLERANCE_RATIO * mInterval[slot]));
+		}
+
+		/**
+		 * Predicted interval of the key's slot, or 0 when nothing is known about it.
+		 */
+		synchronized long getInterval(AlarmKey key) {
+			final int slot = key.slot;
+			if(slot < mLast.length && mSamples[slot] >= MIN_SAMPLES)	return mInterval[slot];
+			return key.offlineInterval;
+		}
+
+		synchronized long getTolerance(int slot) {
+			if(slot < mLast.length && mSamples[slot] >= MIN_SAMPLES)	return mTolerance[slot];
+			return 0;
+		}
+
+		synchronized void dump(PrintWriter pw) {
+			pw.println("Alarm intervals:");
+			for(int slot = 0; slot < mLast.length; slot++) {
+				if(mSamples[slot] == 0)	continue;
+				pw.print("  interval="); TimeUtils.formatDuration(mInterval[slot], pw);
+				pw.print(" tolerance="); TimeUtils.formatDuration(mTolerance[slot], pw);
+				pw.print(" mean="); TimeUtils.formatDuration((long)mMean[slot], pw);
+				pw.print(" samples="); pw.print(mSamples[slot]);
+				pw.print(" "); pw.println(getAlarmId(slot));
+			}
+		}
+	}
+
 	private static final class BroadcastStats {
 		final String mPackageName;
 
@@ -991,13 +1802,15 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			setTimeZone(tz);
 		}
 
-		Calendar c = Calendar.getInstance();
-		int dayOfMonth = c.get(Calendar.DAY_OF_MONTH);
-		HOWARD_POLICY = dayOfMonth < 10 ? true : false;
-		ENABLE_REBATCH_CONTROL = dayOfMonth < 5 ? true : false;
-		ENABLE_OVERHEAD_EXP = (dayOfMonth > 15 && dayOfMonth < 20) ? true : false;
-		FIXED_INTERVAL = dayOfMonth > 20 ? true : false;
-		FIXED_INTERVAL_LENGTH = dayOfMonth > 25 ? 3*60*1000 : 5*60*1000;
+		// The policy starts as the original one; the resource manager applies the configured
+		// policy through setCoalescingPolicy() once it is up.
+		for (int i = 0; i < mCoalescingStats.length; i++) {
+			mCoalescingStats[i] = new CoalescingStats();
+		}
+		mCoalescingStats[mCoalescingPolicy].start(SystemClock.elapsedRealtime());
+		mSnapshot = MultiResourceManager.StateSnapshot.getWriter();
+		mPerceivability.setSnapshot(mSnapshot);
+		publishPerceivabilityGate();
 
 		PowerManager pm = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
 		mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
@@ -1017,6 +1830,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		mClockReceiver.scheduleTimeTickEvent();
 		mClockReceiver.scheduleDateChangedEvent();
 		mUninstallReceiver = new UninstallReceiver();
+		mConnectivityReceiver = new ConnectivityReceiver();
 
 		if (mDescriptor != -1) {
 			mWaitThread.start();
@@ -1129,7 +1943,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 						+ " interval=" + interval + " standalone=" + isStandalone);
 			}
 			setImplLocked(type, triggerAtTime, triggerElapsed, windowLength, maxElapsed,
-					interval, operation, isStandalone, true, workSource);
+					interval, operation, isStandalone, true, workSource, null);
 		}
 	}
 
@@ -1148,27 +1962,58 @@ class AlarmManagerService extends IAlarmManager.Stub {
 
 	private void setImplLocked(int type, long when, long whenElapsed, long windowLength,
 			long maxWhen, long interval, PendingIntent operation, boolean isStandalone,
-			boolean doValidate, WorkSource workSource) {
+			boolean doValidate, WorkSource workSource, AlarmKey key) {
+		if (key == null) {
+			// Replacing a pending alarm of the same operation keeps its key.
+			final Alarm pending = mAlarmsByOperation.get(operation);
+			if (pending != null) {
+				key = pending.key;
+			}
+		}
 		Alarm a = new Alarm(type, when, whenElapsed, windowLength, maxWhen, interval,
-				operation, workSource, SystemClock.elapsedRealtime(), isStandalone);
+				operation, workSource, SystemClock.elapsedRealtime(), isStandalone, key);
 		
 		removeLocked(operation);
+		addAlarmLocked(a);
 
-		boolean newStart = false;
-		int whichBatch;
-		if(HOWARD_POLICY){
-			whichBatch = (isStandalone) ? -1 : attemptCoalesceLockedHoward(a);
-			
-			int index = Collections.binarySearch(mAlarmsInOrder, a, sMaxDelaySizeOrder);
-			if (index < 0) {
-				index = 0 - index - 1;
+		if (DEBUG_VALIDATE) {
+			if (doValidate && !validateConsistencyLocked()) {
+				Slog.v(TAG, "Tipping-point operation: type=" + type + " when=" + when
+						+ " when(hex)=" + Long.toHexString(when)
+						+ " whenElapsed=" + whenElapsed + " maxWhen=" + maxWhen
+						+ " interval=" + interval + " op=" + operation
+						+ " standalone=" + isStandalone);
+				if(HOWARD_POLICY){
+					rebatchAllAlarmsLockedHoward(false);
+				} else {
+					rebatchAllAlarmsLocked(false);
+				}
 			}
-			mAlarmsInOrder.add(index, a);
+		}
+	
+		if(HOWARD_POLICY){
+			rescheduleKernelAlarmsLockedHoward();
+		} else {
+			rescheduleKernelAlarmsLocked();
+		}
+	}
+
+	/**
+	 * Put the alarm into the batch the current policy coalesces it with, or into a new one.
+	 * Does not remove an older alarm of the operation nor reprogram the kernel.
+	 * Returns true if the alarm's batch is now at the head with a new start.
+	 */
+	private boolean addAlarmLocked(Alarm a) {
+		final boolean isStandalone = a.isStandalone;
+		boolean newStart = false;
+		Batch whichBatch;
+		if(HOWARD_POLICY){
+			whichBatch = (isStandalone) ? null : attemptCoalesceLockedHoward(a);
 		} else if(FIXED_INTERVAL){
-			whichBatch = -1;
+			whichBatch = null;
 		} else {
 			long startElapsed = SystemClock.elapsedRealtime();	
-			whichBatch = (isStandalone) ? -1 : attemptCoalesceLocked(whenElapsed, maxWhen);
+			whichBatch = (isStandalone) ? null : attemptCoalesceLocked(a.whenElapsed, a.maxWhen);
 			if(DEBUG_HOWARD_LEVEL4){
 				long endElapsed = SystemClock.elapsedRealtime();
 				Slog.v("DEBUG_HOWARD_LEVEL4. attemptCoalesceLocked", "Start: " + startElapsed + ", End: " + endElapsed + 
@@ -1176,62 +2021,34 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			}
 			if(ENABLE_OVERHEAD_EXP){
 				startElapsed = SystemClock.elapsedRealtime();	
-				int tmpWhichBatch = (isStandalone) ? -1 : attemptCoalesceLockedHoward(a);
+				Batch tmpWhichBatch = (isStandalone) ? null : attemptCoalesceLockedHoward(a);
 				if(DEBUG_HOWARD_LEVEL4){
 					long endElapsed = SystemClock.elapsedRealtime();
 					Slog.v("DEBUG_HOWARD_LEVEL4. attemptCoalesceLockediHoward", "Start: " + startElapsed + ", End: " +
 						 endElapsed + ", Duration: " + (endElapsed - startElapsed));
 				}
-
-				startElapsed = SystemClock.elapsedRealtime();	
-				int index = Collections.binarySearch(mAlarmsInOrder, a, sMaxDelaySizeOrder);
-                        	if (index < 0) {
-                                	index = 0 - index - 1;
-                        	}
-                        	mAlarmsInOrder.add(index, a);
-				if(DEBUG_HOWARD_LEVEL4){
-					long endElapsed = SystemClock.elapsedRealtime();
-					Slog.v("DEBUG_HOWARD_LEVEL4. binarySearch", "Start: " + startElapsed + ", End: " +
-						 endElapsed + ", Duration: " + (endElapsed - startElapsed));
-				}
 			}
 		}
 		
-		if(OBSERVATION_APP_BEHAVIOR)	whichBatch = -1;
-		if (whichBatch < 0) {
+		if(OBSERVATION_APP_BEHAVIOR)	whichBatch = null;
+		if (whichBatch == null) {
 			Batch batch = new Batch(a);
 			batch.standalone = isStandalone;
-			newStart = addBatchLocked(mAlarmBatches, batch);
+			a.batch = batch;
+			newStart = mAlarmBatches.add(batch);
 		} else {
-			Batch batch = mAlarmBatches.get(whichBatch);
-			if (batch.add(a)) {
-				// The start time of this batch advanced, so batch ordering may
-				// have just been broken.  Move it to where it now belongs.
-				mAlarmBatches.remove(whichBatch);
-				newStart = addBatchLocked(mAlarmBatches, batch);
-			}
-		}
-
-		if (DEBUG_VALIDATE) {
-			if (doValidate && !validateConsistencyLocked()) {
-				Slog.v(TAG, "Tipping-point operation: type=" + type + " when=" + when
-						+ " when(hex)=" + Long.toHexString(when)
-						+ " whenElapsed=" + whenElapsed + " maxWhen=" + maxWhen
-						+ " interval=" + interval + " op=" + operation
-						+ " standalone=" + isStandalone);
-				if(HOWARD_POLICY){
-					rebatchAllAlarmsLockedHoward(false);
-				} else {
-					rebatchAllAlarmsLocked(false);
-				}
+			Batch batch = whichBatch;
+			a.batch = batch;
+			final boolean advanced = batch.add(a);
+			// The start time of this batch may have advanced and its bounds narrowed,
+			// so move it to where it now belongs.
+			final boolean head = mAlarmBatches.update(batch);
+			if (advanced) {
+				newStart = head;
 			}
 		}
-	
-		if(HOWARD_POLICY){
-			rescheduleKernelAlarmsLockedHoward();
-		} else {
-			rescheduleKernelAlarmsLocked();
-		}
+		mAlarmsByOperation.put(a.operation, a);
+		return newStart;
 	}
 
 	private void logBatchesLocked() {
@@ -1239,9 +2056,10 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		PrintWriter pw = new PrintWriter(bs);
 		final long nowRTC = System.currentTimeMillis();
 		final long nowELAPSED = SystemClock.elapsedRealtime();
-		final int NZ = mAlarmBatches.size();
+		final ArrayList<Batch> batches = mAlarmBatches.toSortedList();
+		final int NZ = batches.size();
 		for (int iz = 0; iz < NZ; iz++) {
-			Batch bz = mAlarmBatches.get(iz);
+			Batch bz = batches.get(iz);
 			pw.append("Batch "); pw.print(iz); pw.append(": "); pw.println(bz);
 			dumpAlarmList(pw, bz.alarms, "  ", nowELAPSED, nowRTC);
 			pw.flush();
@@ -1252,32 +2070,18 @@ class AlarmManagerService extends IAlarmManager.Stub {
 
 	private boolean validateConsistencyLocked() {
 		if (DEBUG_VALIDATE) {
-			long lastTime = Long.MIN_VALUE;
-			final int N = mAlarmBatches.size();
-			for (int i = 0; i < N; i++) {
-				Batch b = mAlarmBatches.get(i);
-				if (b.start >= lastTime) {
-					// duplicate start times are okay because of standalone batches
-					lastTime = b.start;
-				} else {
-					Slog.e(TAG, "CONSISTENCY FAILURE: Batch " + i + " is out of order");
-					logBatchesLocked();
-					return false;
-				}
+			// duplicate start times are okay because of standalone batches
+			if (!mAlarmBatches.isValid()) {
+				Slog.e(TAG, "CONSISTENCY FAILURE: Batch queue is out of order");
+				logBatchesLocked();
+				return false;
 			}
 		}
 		return true;
 	}
 
 	private Batch findFirstWakeupBatchLocked() {
-		final int N = mAlarmBatches.size();
-		for (int i = 0; i < N; i++) {
-			Batch b = mAlarmBatches.get(i);
-			if (b.hasWakeups()) {
-				return b;
-			}
-		}
-		return null;
+		return mAlarmBatches.peekWakeup();
 	}
 
 	private static ArrayList<Batch> cloneBatches(final ArrayList<Batch> batches){
@@ -1305,7 +2109,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		// prior to that which contains no wakeups, we schedule that as well.
 		if (mAlarmBatches.size() > 0) {
 			final Batch firstWakeup = findFirstWakeupBatchLocked();
-			final Batch firstBatch = mAlarmBatches.get(0);
+			final Batch firstBatch = mAlarmBatches.peek();
 			if (firstWakeup != null && mNextWakeup != firstWakeup.start) {
 				mNextWakeup = firstWakeup.start;
 				setLocked(ELAPSED_REALTIME_WAKEUP, firstWakeup.start);
@@ -1380,49 +2184,49 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			removeLockedHoward(operation);
 			return ;
 		}
-		boolean didRemove = false;
-		for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-			Batch b = mAlarmBatches.get(i);
-			didRemove |= b.remove(operation);
-			if (b.size() == 0) {
-				mAlarmBatches.remove(i);
-			}
-		}
-		
-		if (didRemove) {
+		if (removeAlarmLocked(operation)) {
 			if (DEBUG_BATCH || TRACE_HOWARD) {
 				Slog.v(TAG, "remove(operation) changed bounds; rebatching");
 			}
 			if(HOWARD_POLICY){
-				for(int i = mAlarmsInOrder.size()-1; i>=0; i--){
-					Alarm a = mAlarmsInOrder.get(i);
-					if(a.operation.equals(operation)){
-						mAlarmsInOrder.remove(i);
-					}
-				}
 				rebatchAllAlarmsLockedHoward(true);
 			} else {
-				if(ENABLE_OVERHEAD_EXP){
-					for(int i = mAlarmsInOrder.size()-1; i>=0; i--){
-						Alarm a = mAlarmsInOrder.get(i);
-						if(a.operation.equals(operation)){
-							mAlarmsInOrder.remove(i);
-						}
-					}
-				}
 				rebatchAllAlarmsLocked(true);
 			}
-			rescheduleKernelAlarmsLocked();
 		}
 	}
 
+	/**
+	 * Drop the pending alarm of the operation from the one batch that holds it.
+	 * Returns false if the operation had no pending alarm.
+	 */
+	private boolean removeAlarmLocked(PendingIntent operation) {
+		final Alarm alarm = mAlarmsByOperation.remove(operation);
+		if (alarm == null) {
+			return false;
+		}
+		final Batch b = alarm.batch;
+		alarm.batch = null;
+		if (b != null && b.remove(operation)) {
+			if (b.size() == 0) {
+				mAlarmBatches.remove(b);
+			} else {
+				mAlarmBatches.update(b);
+			}
+		}
+		return true;
+	}
+
 	public void removeLocked(String packageName) {
 		boolean didRemove = false;
-		for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-			Batch b = mAlarmBatches.get(i);
-			didRemove |= b.remove(packageName);
-			if (b.size() == 0) {
-				mAlarmBatches.remove(i);
+		for (Batch b : mAlarmBatches.toArray()) {
+			if (b.remove(packageName)) {
+				didRemove = true;
+				if (b.size() == 0) {
+					mAlarmBatches.remove(b);
+				} else {
+					mAlarmBatches.update(b);
+				}
 			}
 		}
 		
@@ -1430,36 +2234,29 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			if (DEBUG_BATCH || TRACE_HOWARD) {
 				Slog.v(TAG, "remove(package) changed bounds; rebatching");
 			}
-			if(HOWARD_POLICY){
-				for(int i = mAlarmsInOrder.size()-1; i>=0; i--){
-					Alarm a = mAlarmsInOrder.get(i);
-					if(a.operation.getTargetPackage().equals(packageName)){
-						mAlarmsInOrder.remove(i);
-					}
+			for (Iterator<Alarm> it = mAlarmsByOperation.values().iterator(); it.hasNext(); ) {
+				if (it.next().operation.getTargetPackage().equals(packageName)) {
+					it.remove();
 				}
+			}
+			if(HOWARD_POLICY){
 				rebatchAllAlarmsLockedHoward(true);
 			} else {
-				if(ENABLE_OVERHEAD_EXP){
-					for(int i = mAlarmsInOrder.size()-1; i>=0; i--){
-						Alarm a = mAlarmsInOrder.get(i);
-						if(a.operation.getTargetPackage().equals(packageName)){
-							mAlarmsInOrder.remove(i);
-						}
-					}
-				}
 				rebatchAllAlarmsLocked(true);
 			}
-			rescheduleKernelAlarmsLocked();
 		}
 	}
 
 	public void removeUserLocked(int userHandle) {
 		boolean didRemove = false;
-		for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-			Batch b = mAlarmBatches.get(i);
-			didRemove |= b.remove(userHandle);
-			if (b.size() == 0) {
-				mAlarmBatches.remove(i);
+		for (Batch b : mAlarmBatches.toArray()) {
+			if (b.remove(userHandle)) {
+				didRemove = true;
+				if (b.size() == 0) {
+					mAlarmBatches.remove(b);
+				} else {
+					mAlarmBatches.update(b);
+				}
 			}
 		}
 
@@ -1467,32 +2264,21 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			if (DEBUG_BATCH || TRACE_HOWARD) {
 				Slog.v(TAG, "remove(user) changed bounds; rebatching");
 			}
-			if(HOWARD_POLICY){
-				for(int i = mAlarmsInOrder.size()-1; i>=0; i--){
-					Alarm a = mAlarmsInOrder.get(i);
-					if (UserHandle.getUserId(a.operation.getCreatorUid()) == userHandle) {
-						mAlarmsInOrder.remove(i);
-					}
+			for (Iterator<Alarm> it = mAlarmsByOperation.values().iterator(); it.hasNext(); ) {
+				if (UserHandle.getUserId(it.next().operation.getCreatorUid()) == userHandle) {
+					it.remove();
 				}
+			}
+			if(HOWARD_POLICY){
 				rebatchAllAlarmsLockedHoward(true);
 			} else {
-				if(ENABLE_OVERHEAD_EXP){
-					for(int i = mAlarmsInOrder.size()-1; i>=0; i--){
-						Alarm a = mAlarmsInOrder.get(i);
-						if (UserHandle.getUserId(a.operation.getCreatorUid()) == userHandle) {
-							mAlarmsInOrder.remove(i);
-						}
-					}
-				}
 				rebatchAllAlarmsLocked(true);
 			}
-			rescheduleKernelAlarmsLocked();
 		}
 	}
 
 	public boolean lookForPackageLocked(String packageName) {
-		for (int i = 0; i < mAlarmBatches.size(); i++) {
-			Batch b = mAlarmBatches.get(i);
+		for (Batch b : mAlarmBatches.toArray()) {
 			if (b.hasPackage(packageName)) {
 				return true;
 			}
@@ -1567,22 +2353,35 @@ class AlarmManagerService extends IAlarmManager.Stub {
 				pw.print(" = "); pw.println(sdf.format(new Date(nextWakeupRTC)));
 
 				pw.print("HOWARD_POLICY: "); pw.println((HOWARD_POLICY? "true" : "false"));
+				pw.print("Coalescing policy: ");
+				pw.println(MultiResourceManager.POLICY_STRING[MultiResourceManager.POLICY_DOMAIN_COALESCING][mCoalescingPolicy]);
+				for (int i = 0; i < mCoalescingStats.length; i++) {
+					pw.print("  ");
+					pw.print(MultiResourceManager.POLICY_STRING[MultiResourceManager.POLICY_DOMAIN_COALESCING][i]);
+					pw.print(": ");
+					mCoalescingStats[i].dump(pw, nowELAPSED);
+				}
+				mPerceivability.dump(pw, nowELAPSED);
+				mIntervalModel.dump(pw);
 
 				if (mAlarmBatches.size() > 0) {
 					pw.println();
 					pw.print("Pending alarm batches: ");
 					pw.println(mAlarmBatches.size());
-					for (Batch b : mAlarmBatches) {
-						pw.print(b); pw.println(':');
+					pw.print("Energy model: "); pw.print(mEnergyModel.getClass().getSimpleName());
+					pw.print(" networkType="); pw.println(mNetworkType);
+					for (Batch b : mAlarmBatches.toSortedList()) {
+						pw.print(b); pw.print(" cost="); pw.print(getBatchCostLocked(b)); pw.println(':');
 						dumpAlarmList(pw, b.alarms, "  ", nowELAPSED, nowRTC);
 					}
 				}
 		
-				if (mAlarmsInOrder.size() > 0) {
+				if ((HOWARD_POLICY || ENABLE_OVERHEAD_EXP) && mAlarmsByOperation.size() > 0) {
+					final ArrayList<Alarm> alarmsInOrder = alarmsInOrderLocked();
 					pw.println();
 					pw.print("Alarms in order: ");
-					pw.println(mAlarmsInOrder.size());
-					for (Alarm a : mAlarmsInOrder) {
+					pw.println(alarmsInOrder.size());
+					for (Alarm a : alarmsInOrder) {
 						pw.println(a);
 					}
 				}
@@ -1754,12 +2553,41 @@ class AlarmManagerService extends IAlarmManager.Stub {
 	private native int waitForAlarm(int fd);
 	private native int setKernelTimezone(int fd, int minuteswest);
 
+	private void noteDeliveredBatchLocked(Batch batch) {
+		final CoalescingStats stats = mCoalescingStats[mCoalescingPolicy];
+		stats.batches++;
+		stats.alarms += batch.size();
+		if(!batch.hasWakeups()) {
+			return;
+		}
+		stats.wakeupBatches++;
+		stats.energy += getBatchCostLocked(batch);
+
+		final int mask = mDeliveredWakeupHardware == -1 ? 0 : mDeliveredWakeupHardware;
+		mDeliveredWakeupHardware = mask | batch.hardwareMask;
+	}
+
+	/**
+	 * Tell the multi-resource manager that wakeup batches were just delivered, so deferred
+	 * notification alerts can ride on this wakeup.
+	 */
+	private void notifyWakeupBatchDelivered(int hardwareMask) {
+		IMultiResourceManagerService mrm = IMultiResourceManagerService.Stub.asInterface(ServiceManager.getService(Context.RESOURCE_MANAGER_SERVICE));
+		if(mrm == null) {
+			return;
+		}
+		try {
+			mrm.alarmBatchDelivered(hardwareMask);
+		} catch(RemoteException e) {
+		}
+	}
+
 	private void triggerAlarmsLocked(ArrayList<Alarm> triggerList, long nowELAPSED, long nowRTC) {
 		// batches are temporally sorted, so we need only pull from the
 		// start of the list until we either empty it or hit a batch
 		// that is not yet deliverable
 		while (mAlarmBatches.size() > 0) {
-			Batch batch = mAlarmBatches.get(0);
+			Batch batch = mAlarmBatches.peek();
 
 			if (batch.start > nowELAPSED) {
 				// Everything else is scheduled for the future
@@ -1773,17 +2601,16 @@ class AlarmManagerService extends IAlarmManager.Stub {
 
 			// We will (re)schedule some alarms now; don't let that interfere
 			// with delivery of this current batch
-			mAlarmBatches.remove(0);
+			mAlarmBatches.poll();
+			noteDeliveredBatchLocked(batch);
 
 			final int N = batch.size();
 			for (int i = 0; i < N; i++) {
 				Alarm alarm = batch.get(i);
 				alarm.count = 1;
 				triggerList.add(alarm);
-
-				if(ENABLE_OVERHEAD_EXP){
-					mAlarmsInOrder.remove(alarm);
-				}
+				mAlarmsByOperation.remove(alarm.operation);
+				alarm.batch = null;
 
 				// Recurring alarms may have passed several alarm intervals while the
 				// phone was asleep or off, so pass a trigger count when sending them.
@@ -1798,7 +2625,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 					setImplLocked(alarm.type, alarm.when + delta, nextElapsed, alarm.windowLength,
 							maxTriggerTime(nowELAPSED, nextElapsed, alarm.repeatInterval),
 							alarm.repeatInterval, alarm.operation, batch.standalone, true,
-							alarm.workSource);
+							alarm.workSource, alarm.key);
 				}
 
 			}
@@ -1853,9 +2680,13 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		public long registerElapsed;
 		public long register2Trigger;
 		public boolean isStandalone;
+		public final AlarmKey key;
+		public final long tolerance;
+		Batch batch;    // the pending batch holding this alarm, see mAlarmsByOperation
 
 		public Alarm(int _type, long _when, long _whenElapsed, long _windowLength, long _maxWhen,
-				long _interval, PendingIntent _op, WorkSource _ws, long _registerElapsed, boolean _isStandalone) {
+				long _interval, PendingIntent _op, WorkSource _ws, long _registerElapsed, boolean _isStandalone,
+				AlarmKey _key) {
 			type = _type;
 			when = _when;
 			whenElapsed = _whenElapsed;
@@ -1866,46 +2697,30 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			workSource = _ws;
 
 			registerElapsed = _registerElapsed;
-			int offlineInterval = getOfflineSupport(getId(), 1);
-			if(offlineInterval > 0){
-				register2Trigger = offlineInterval;	
+			key = _key != null ? _key : getAlarmKey(_op);
+			long predictedInterval = mIntervalModel.getInterval(key);
+			if(predictedInterval > 0){
+				register2Trigger = predictedInterval;
 			} else {
-				register2Trigger = repeatInterval > 0 ? repeatInterval : 
-					Math.max(whenElapsed-registerElapsed, getIntervalFromHistory());
+				register2Trigger = repeatInterval > 0 ? repeatInterval : whenElapsed-registerElapsed;
 				//if (register2Trigger > AlarmManager.INTERVAL_HOUR) {
 				//	register2Trigger = AlarmManager.INTERVAL_HOUR;
 				//}
 			}
+			tolerance = mIntervalModel.getTolerance(key.slot);
 			isStandalone = _isStandalone;
 		}
 
 		public String getId(){
-			String ret = new String();
-			Intent i = operation.getIntent();
-			ret += operation.getCreatorUid();
-
-			if(i != null){
-				ret += i.getAction() + i.getComponent();
-			} else {
-				ret += "null";
-			}
-			return ret;
-		}
-
-		public long getIntervalFromHistory(){
-			WakeupEvent w1 = mWakeupRecords.get(getId());
-			WakeupEvent w2 = mSecondWakeupRecords.get(getId());
-			return (w1 != null && w2 != null)? Math.max(w1.when-w1.mDelay - (w2.when-w2.mDelay), 0): 0;	
+			return key.id;
 		}
 
-		public int[] getHardwareUsage(){
-			WakeupEvent w = mWakeupRecords.get(getId());
-			return w != null? w.mHardwareUsage : null;	
+		public MultiResourceManager.HardwareSet getHardware(){
+			return key.hardware;
 		}
 
 		public boolean isPerceivable(){
-			int[] hardwareUsage = getHardwareUsage();
-			return hardwareUsage != null? MultiResourceManager.isPerceivable(hardwareUsage) : false;
+			return mPerceivability.isAlarmPerceivable(key.slot);
 		}
 
 		public boolean isWakeup(){
@@ -1918,10 +2733,9 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		public long[] getWindow(){
 			long[] window = new long[2];
 			window[0] = whenElapsed;
-			window[1] = maxWhen;
-			if(getId().contains("com.aplicativoslegais.beberagua/com.aplicativoslegais.beberagua.broadcastReceivers.Notificacao")){
-				window[1] = Math.max(whenElapsed + (long)(0.75*register2Trigger), maxWhen);
-			}
+			// Only inexact alarms nobody would notice may slip by the learned tolerance.
+			boolean inexact = windowLength != 0 || whenElapsed != maxWhen;
+			window[1] = inexact && !isPerceivable() ? Math.max(whenElapsed + tolerance, maxWhen) : maxWhen;
 			return window;	
 		}	
 	
@@ -1966,7 +2780,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		@Override
 			protected Alarm clone(){
 				Alarm b = new Alarm(type, when, whenElapsed, windowLength, maxWhen, repeatInterval, 
-					operation, workSource, registerElapsed, isStandalone);
+					operation, workSource, registerElapsed, isStandalone, key);
 
 				return b;
 			}
@@ -2032,9 +2846,12 @@ class AlarmManagerService extends IAlarmManager.Stub {
 					mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
 				}
 
+				final int deliveredHardware;
+				final long nowRTC;
+				final long nowELAPSED;
 				synchronized (mLock) {
-					final long nowRTC = System.currentTimeMillis();
-					final long nowELAPSED = SystemClock.elapsedRealtime();
+					nowRTC = System.currentTimeMillis();
+					nowELAPSED = SystemClock.elapsedRealtime();
 					if (localLOGV) Slog.v(
 							TAG, "Checking for alarms... rtc=" + nowRTC
 							+ ", elapsed=" + nowELAPSED);
@@ -2050,10 +2867,20 @@ class AlarmManagerService extends IAlarmManager.Stub {
 						triggerAlarmsLocked(triggerList, nowELAPSED, nowRTC);
 						rescheduleKernelAlarmsLocked();
 					}
-					
+					deliveredHardware = mDeliveredWakeupHardware;
+					mDeliveredWakeupHardware = -1;
+				}
+
+				// The baselines must predate the broadcasts, so sample them before sending,
+				// without mLock. The kernel keeps the device awake until the next wait.
+				final long[] baselines = (WAKEUP_STATS || HOWARD_POLICY)
+						? sampleNetworkBaselines(triggerList) : null;
+
+				synchronized (mLock) {
 					// now deliver the alarm intents
 					for (int i=0; i<triggerList.size(); i++) {
 						Alarm alarm = triggerList.get(i);
+						mIntervalModel.noteArrival(alarm.key.slot, alarm.whenElapsed);
 						try {
 							if (localLOGV) Slog.v(TAG, "sending alarm " + alarm);
 							alarm.operation.send(mContext, 0,
@@ -2086,6 +2913,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 								fs.startTime = nowELAPSED;
 								if(WAKEUP_STATS || HOWARD_POLICY){
 									fs.initialRecord(nowRTC, nowELAPSED, alarm);
+									fs.setNetworkBaseline(baselines[2 * i], baselines[2 * i + 1]);
 								}
 							} else {
 								fs.nesting++;
@@ -2108,8 +2936,45 @@ class AlarmManagerService extends IAlarmManager.Stub {
 						}
 					}
 				}
+
+				if(deliveredHardware != -1) {
+					notifyWakeupBatchDelivered(deliveredHardware);
+				}
+			}
+		}
+	}
+
+	private long[] mBaselineCounters = new long[16];
+	private final long[] mSampleCounters = new long[2];
+
+	/**
+	 * Sample the network counters of the creators of the alarms about to be delivered, without
+	 * holding mLock. A uid with several alarms in the batch is read once. Return the received
+	 * and sent counters of alarm i at 2 * i and 2 * i + 1; the array is reused by the next call.
+	 * Only called from the AlarmThread.
+	 */
+	private long[] sampleNetworkBaselines(ArrayList<Alarm> alarms) {
+		final int n = alarms.size();
+		if (mBaselineCounters.length < 2 * n) {
+			mBaselineCounters = new long[2 * n];
+		}
+		final long[] counters = mBaselineCounters;
+		final NetworkCounterSource source = mNetworkCounters;
+		for (int i = 0; i < n; i++) {
+			final int uid = alarms.get(i).key.uid;
+			int j = 0;
+			while (j < i && alarms.get(j).key.uid != uid) j++;
+			if (j < i) {
+				counters[2 * i] = counters[2 * j];
+				counters[2 * i + 1] = counters[2 * j + 1];
+			} else if (!source.read(uid, mSampleCounters)) {
+				counters[2 * i] = counters[2 * i + 1] = -1;  // left unsampled
+			} else {
+				counters[2 * i] = mSampleCounters[0];
+				counters[2 * i + 1] = mSampleCounters[1];
 			}
 		}
+		return counters;
 	}
 
 	/**
@@ -2229,6 +3094,20 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		}
 	}
 
+	class ConnectivityReceiver extends BroadcastReceiver {
+		public ConnectivityReceiver() {
+			IntentFilter filter = new IntentFilter();
+			filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+			mContext.registerReceiver(this, filter);
+		}
+
+		@Override
+			public void onReceive(Context context, Intent intent) {
+				ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+				mNetworkType = MultiResourceManager.getNetworkType(cm.getActiveNetworkInfo());
+			}
+	}
+
 	class UninstallReceiver extends BroadcastReceiver {
 		public UninstallReceiver() {
 			IntentFilter filter = new IntentFilter();
@@ -2300,8 +3179,14 @@ class AlarmManagerService extends IAlarmManager.Stub {
 	}
 
 	class ResultReceiver implements PendingIntent.OnFinished {
+		private final long[] mCounters = new long[2];
+
 		public void onSendFinished(PendingIntent pi, Intent intent, int resultCode,
 				String resultData, Bundle resultExtras) {
+			// Sample before taking the lock; always runs on mHandler, so mCounters is not shared.
+			if (!(WAKEUP_STATS || HOWARD_POLICY) || !mNetworkCounters.read(pi.getCreatorUid(), mCounters)) {
+				mCounters[0] = mCounters[1] = -1;  // not sampled, counts no traffic
+			}
 			synchronized (mLock) {
 				InFlight inflight = null;
 				for (int i=0; i<mInFlight.size(); i++) {
@@ -2325,14 +3210,15 @@ class AlarmManagerService extends IAlarmManager.Stub {
 						fs.nesting = 0;
 						fs.aggregateTime += nowELAPSED - fs.startTime;                        
 						if (WAKEUP_STATS || HOWARD_POLICY) {
-							WakeupEvent e = fs.finishRecord(nowRTC, pi);    
+							WakeupEvent e = fs.finishRecord(nowRTC, pi, mCounters[0], mCounters[1]);    
 
 							if(HOWARD_POLICY || ENABLE_OVERHEAD_EXP){
 								if(e != null){
-									WakeupEvent e2 = mWakeupRecords.get(e.getId());
-									if(e2 != null)	mSecondWakeupRecords.put(e2.getId(), e2);
 									mWakeupRecords.put(e.getId(), e);
 									mWakeupRecordsByUid.put(e.uid, e);
+									setAlarmHardwareLocked(fs.alarmKey, e.mHardwareUsage);
+									mPerceivability.noteWakeup(e.uid, fs.alarmKey.slot, e.mHardwareUsage,
+											!e.id.contains(EXP_APP_ALARM), nowELAPSED);
 								}
 							}
 
@@ -2388,7 +3274,9 @@ class AlarmManagerService extends IAlarmManager.Stub {
 	 * Feedback from the resource manager.
 	 */
 	public void setLastGrantHardware(int uid, int hardware){
+		enforceSystemCaller("setLastGrantHardware");
 		if(uid < 10000)	return;
+		if(hardware < 0 || hardware >= MultiResourceManager.MAX_HARDWARE)	return;
 
 		int size = mRecentWakeups.size();
 		for(int i = size-1; i >= 0; i--){
@@ -2407,10 +3295,80 @@ class AlarmManagerService extends IAlarmManager.Stub {
 				}
 			}
 		}	
-		if(lastEvent != null)	lastEvent.mHardwareUsage[hardware]++;
+		if(lastEvent != null){
+			lastEvent.mHardwareUsage[hardware]++;
+			setAlarmHardwareLocked(getAlarmKey(lastEvent.id), lastEvent.mHardwareUsage);
+		}
 
 		WakeupEvent e = mWakeupRecordsByUid.get(uid);
-		if(e != null && !e.id.contains(EXP_APP_ALARM))	e.mHardwareUsage[hardware]++;
+		if(e != null && !e.id.contains(EXP_APP_ALARM)){
+			e.mHardwareUsage[hardware]++;
+			setAlarmHardwareLocked(getAlarmKey(e.id), e.mHardwareUsage);
+		}
+
+		mPerceivability.noteGrant(uid, hardware, SystemClock.elapsedRealtime());
+	}
+
+	/**
+	 * Batched feedback from the resource manager.
+	 */
+	public void setLastGrantHardwares(int[] uids, int[] hardwares, int count){
+		enforceSystemCaller("setLastGrantHardwares");
+		count = Math.min(count, Math.min(uids.length, hardwares.length));
+		synchronized (mLock) {
+			for(int i = 0; i < count; i++){
+				setLastGrantHardware(uids[i], hardwares[i]);
+			}
+		}
+	}
+
+	/**
+	 * Grants feed the perceivability decisions and the wakelock gate, so only the resource
+	 * manager in system_server may report them.
+	 */
+	private static void enforceSystemCaller(String method){
+		if(Binder.getCallingUid() != Process.SYSTEM_UID){
+			throw new SecurityException(method + " is only callable by the system");
+		}
+	}
+
+	/**
+	 * Switch the coalescing policy and rebatch every live alarm under it.
+	 */
+	public void setCoalescingPolicy(int policy){
+		mContext.enforceCallingOrSelfPermission(android.Manifest.permission.WRITE_SECURE_SETTINGS,
+				"setCoalescingPolicy");
+		if(!MultiResourceManager.isValidPolicy(MultiResourceManager.POLICY_DOMAIN_COALESCING, policy)){
+			throw new IllegalArgumentException("Unknown coalescing policy " + policy);
+		}
+		synchronized (mLock) {
+			applyCoalescingPolicyLocked(policy);
+		}
+	}
+
+	private void applyCoalescingPolicyLocked(int policy){
+		if(policy == mCoalescingPolicy)	return;
+		final long nowElapsed = SystemClock.elapsedRealtime();
+		Slog.i(TAG, "Coalescing policy: "
+				+ MultiResourceManager.POLICY_STRING[MultiResourceManager.POLICY_DOMAIN_COALESCING][policy]);
+
+		mCoalescingStats[mCoalescingPolicy].stop(nowElapsed);
+		mCoalescingPolicy = policy;
+		mCoalescingStats[policy].start(nowElapsed);
+
+		HOWARD_POLICY = policy == MultiResourceManager.COALESCING_POLICY_HOWARD
+			|| policy == MultiResourceManager.COALESCING_POLICY_HOWARD_REBATCH;
+		ENABLE_REBATCH_CONTROL = policy == MultiResourceManager.COALESCING_POLICY_HOWARD_REBATCH;
+		ENABLE_OVERHEAD_EXP = policy == MultiResourceManager.COALESCING_POLICY_OVERHEAD_EXP;
+		FIXED_INTERVAL = policy == MultiResourceManager.COALESCING_POLICY_FIXED_INTERVAL_5MIN
+			|| policy == MultiResourceManager.COALESCING_POLICY_FIXED_INTERVAL_3MIN;
+		FIXED_INTERVAL_LENGTH = policy == MultiResourceManager.COALESCING_POLICY_FIXED_INTERVAL_3MIN
+			? 3*60*1000 : 5*60*1000;
+
+		publishPerceivabilityGate();
+
+		// mAlarmBatches holds every live alarm under any policy.
+		rebatchAllAlarmsLocked(true);
 	}
 
 	public void onScreenOn(){
@@ -2425,32 +3383,67 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		//rebatchAllAlarms();
 	}
 
+	/**
+	 * Tell snapshot readers whether isUserPerceivable() follows the classifier.
+	 */
+	private void publishPerceivabilityGate() {
+		if(mSnapshot != null) {
+			mSnapshot.setFlag(MultiResourceManager.StateSnapshot.FLAG_PERCEIVABILITY,
+					HOWARD_POLICY && ENABLE_WAKELOCK_CONTROL);
+		}
+	}
+
 	public boolean isUserPerceivable(int uid){
 		if(!HOWARD_POLICY)	return true;
 		if(!ENABLE_WAKELOCK_CONTROL)	return true;
-		WakeupEvent e = mWakeupRecordsByUid.get(uid);
-		if(e != null){
-			return MultiResourceManager.isPerceivable(e.mHardwareUsage);	
-		}
-		return false;
+		return mPerceivability.isUidPerceivable(uid);
 	}
 
 	/*
 	 * Called when adding an alarm.
 	 */
-	int attemptCoalesceLockedHoward(Alarm a) {
+	Batch attemptCoalesceLockedHoward(Alarm a) {
 		if(TRACE_HOWARD){
 			Slog.d(HOWARD_TAG, "attemptCoalesceLockedHoward(). alarm:" + a.toString());
 		}
-		final int N = mAlarmBatches.size();
 		long[] aWindow = a.getWindow();
 		long[] aInterval = a.getInterval();
 		Batch tmp = new Batch(a);
 		MultiResourceManager.SIMILARITY t = MultiResourceManager.SIMILARITY.LOW, 
 			h = MultiResourceManager.SIMILARITY.LOW;
-		int highestIndex = -1;
+		Batch highest = null;
+		// Pick the mergeable batch that saves the most energy; similarity breaks ties.
+		final int networkType = mNetworkType;
+		final int aMask = tmp.hardwareMask;
+		final boolean aWakeup = tmp.hasWakeups();
+		final float aCost = mEnergyModel.getCost(aMask, aWakeup, networkType);
+		float highestSaving = 0.f;
+
+		// LOW time similarity never merges, so only look at the batches whose window overlaps
+		// (HIGH) and, when neither side is perceivable, whose interval overlaps (MID).
+		final ArrayList<Batch> candidates = mCoalesceCandidates;
+		candidates.clear();
+		mAlarmBatches.queryWindows(aWindow[0], aWindow[1], candidates);
+		if (!tmp.isPerceivable) {
+			final int highCount = candidates.size();
+			mAlarmBatches.queryIntervals(aInterval[0], aInterval[1], candidates);
+			int n = highCount;
+			for (int i = highCount; i < candidates.size(); i++) {
+				Batch b = candidates.get(i);
+				if (!b.isPerceivable && (b.end < aWindow[0] || b.start > aWindow[1])) {
+					candidates.set(n++, b);
+				}
+			}
+			while (candidates.size() > n) {
+				candidates.remove(candidates.size() - 1);
+			}
+		}
+		// Walk them in delivery order, so ties and the early exit favour the earliest batch.
+		Collections.sort(candidates, sBatchOrder);
+
+		final int N = candidates.size();
 		for (int i = 0; i < N; i++) {
-			Batch b = mAlarmBatches.get(i);
+			Batch b = candidates.get(i);
 			
 			if(tmp.deadline < b.when){
 				break;
@@ -2459,19 +3452,24 @@ class AlarmManagerService extends IAlarmManager.Stub {
 				continue;
 			}
 
-			MultiResourceManager.SIMILARITY timeSimilarity = MultiResourceManager.getTimeSimilarity(aWindow[0], aWindow[1], aInterval[0], aInterval[1], b.start, b.end, b.intervalStart, b.intervalEnd), hardwareSimilarity = MultiResourceManager.getHardwareSimilarity(a.getHardwareUsage(), b.hardwareUsage);
+			MultiResourceManager.SIMILARITY timeSimilarity = MultiResourceManager.getTimeSimilarity(aWindow[0], aWindow[1], aInterval[0], aInterval[1], b.start, b.end, b.intervalStart, b.intervalEnd), hardwareSimilarity = MultiResourceManager.getHardwareSimilarity(aMask, b.hardwareMask);
+			final float saving = MultiResourceManager.getMergeSaving(mEnergyModel, aMask, aWakeup,
+					b.hardwareMask, b.hasWakeups(), networkType);
 
-			if(isMergeable(tmp, b, timeSimilarity, hardwareSimilarity) && 
-				isHigherSimilarity(t, h, timeSimilarity, hardwareSimilarity)){
-				highestIndex = i;
+			if(isMergeable(tmp, b, timeSimilarity, hardwareSimilarity, saving) && 
+				(highest == null || saving > highestSaving
+				 || (saving == highestSaving && isHigherSimilarity(t, h, timeSimilarity, hardwareSimilarity)))){
+				highest = b;
+				highestSaving = saving;
 				t = timeSimilarity;
 				h = hardwareSimilarity;
-				// Find the most similar event.
-				if (t.equals(MultiResourceManager.SIMILARITY.HIGH) && h.equals(MultiResourceManager.SIMILARITY.HIGH)){
+				// Nothing can save more than the whole cost of the new alarm.
+				if (saving >= aCost && t.equals(MultiResourceManager.SIMILARITY.HIGH)){
 					break;
 				}
 			}			
 		}
+		candidates.clear();
 		/*} else {
 			for (int i = N-1; i >= 0; i--) {
 				Batch b = mAlarmBatches.get(i);
@@ -2500,46 +3498,26 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		if (DEBUG_HOWARD) {
 			Slog.d(HOWARD_TAG, "");
 			Slog.d(HOWARD_TAG, "Original batches:");
-			logBatchesLockedHoward(mAlarmBatches);
+			logBatchesLockedHoward(mAlarmBatches.toSortedList());
 			Slog.d(HOWARD_TAG, "");
 			Slog.d(HOWARD_TAG, "Add batches:");
 			logBatchLockedHoward(tmp);
 			Slog.d(HOWARD_TAG, "");
-			Slog.d(HOWARD_TAG, "Highest index: " + highestIndex + ", time:" + t + ", hardware:" + h);
-			if(highestIndex != -1)	logBatchLockedHoward(mAlarmBatches.get(highestIndex));
+			Slog.d(HOWARD_TAG, "Highest batch: " + highest + ", time:" + t + ", hardware:" + h + ", saving:" + highestSaving);
+			if(highest != null)	logBatchLockedHoward(highest);
 		}
 	
-		return highestIndex;
+		return highest;
 	}
 
 	/*
 	 * Called when there is already an alarm that has same operation.
 	 */
 	public void removeLockedHoward(PendingIntent operation) {
-		boolean didRemove = false;
-		for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-			Batch b = mAlarmBatches.get(i);
-			if(b.remove(operation)){
-				didRemove = true;
-				mAlarmBatches.remove(i);
-				if (b.size() == 0) {
-					continue;
-				}
-				addBatchLocked(mAlarmBatches, b);
-				i++;	
-			}
-		}
-
-		if (didRemove) {
+		if (removeAlarmLocked(operation)) {
 			if (DEBUG_BATCH || TRACE_HOWARD) {
 				Slog.v(TAG, "remove(operation) changed bounds; rebatching");
 			}
-			for(int i = mAlarmsInOrder.size()-1; i>=0; i--){
-				Alarm a = mAlarmsInOrder.get(i);
-				if(a.operation.equals(operation)){
-					mAlarmsInOrder.remove(i);
-				}
-			}
 			rescheduleKernelAlarmsLocked();
 		}
 	}
@@ -2552,13 +3530,19 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			return false;
 		}
 		MultiResourceManager.SIMILARITY time = MultiResourceManager.getTimeSimilarity(a.start, a.end, a.intervalStart, a.intervalEnd, b.start, b.end, b.intervalStart, b.intervalEnd);
-		MultiResourceManager.SIMILARITY hardware = MultiResourceManager.getHardwareSimilarity(a.hardwareUsage, b.hardwareUsage);
+		MultiResourceManager.SIMILARITY hardware = MultiResourceManager.getHardwareSimilarity(a.hardwareMask, b.hardwareMask);
+		final float saving = MultiResourceManager.getMergeSaving(mEnergyModel,
+				a.hardwareMask, a.hasWakeups(), b.hardwareMask, b.hasWakeups(), mNetworkType);
 
-		return isMergeable(a, b, time, hardware);
+		return isMergeable(a, b, time, hardware, saving);
 	}
 
+	/**
+	 * Overlapping windows always merge. Moving work into another interval is only worth it
+	 * for imperceptible batches and when the merge saves energy.
+	 */
 	private boolean isMergeable(final Batch a, final Batch b, MultiResourceManager.SIMILARITY time, 
-		MultiResourceManager.SIMILARITY hardware){
+		MultiResourceManager.SIMILARITY hardware, float saving){
 		
 		if(time.equals(MultiResourceManager.SIMILARITY.HIGH) && hardware.equals(MultiResourceManager.SIMILARITY.HIGH)){
 			// <H, H> case.
@@ -2573,7 +3557,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 			return true;
 		}
 
-		if(!a.isPerceivable && !b.isPerceivable){
+		if(!a.isPerceivable && !b.isPerceivable && saving > 0.f){
 			if(time.equals(MultiResourceManager.SIMILARITY.MID) && hardware.equals(MultiResourceManager.SIMILARITY.HIGH)){
 				// <M, H> case.
 				return true;
@@ -2591,6 +3575,27 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		return false;
 	}
 
+	private float getBatchCostLocked(Batch b) {
+		return mEnergyModel.getCost(b.hardwareMask,
+				b.hasWakeups(), mNetworkType);
+	}
+
+	/**
+	 * Replace the model used to price batches. Only affects future merge decisions.
+	 */
+	void setEnergyModel(MultiResourceManager.EnergyModel model) {
+		synchronized (mLock) {
+			mEnergyModel = model;
+		}
+	}
+
+	/**
+	 * Replace the source of the per-uid network counters. Only affects records started later.
+	 */
+	void setNetworkCounterSource(NetworkCounterSource source) {
+		mNetworkCounters = source;
+	}
+
 	private boolean isHigherSimilarity(MultiResourceManager.SIMILARITY time, MultiResourceManager.SIMILARITY hardware, MultiResourceManager.SIMILARITY t, MultiResourceManager.SIMILARITY h){
 		if(t.higher(MultiResourceManager.SIMILARITY.LOW) && h.higher(hardware))      return true;
 		if(t.higher(time) && h.higher(hardware))        return true;
@@ -2601,48 +3606,156 @@ class AlarmManagerService extends IAlarmManager.Stub {
 	}
 
 
+	/**
+	 * The pending alarms, smallest allowed delay first, which is the order rebatching adds them.
+	 */
+	private ArrayList<Alarm> alarmsInOrderLocked() {
+		ArrayList<Alarm> alarms = new ArrayList<Alarm>(mAlarmsByOperation.values());
+		Collections.sort(alarms, sMaxDelaySizeOrder);
+		return alarms;
+	}
+
 	/*
 	 * Called when user changes the time or removing an application with registered alarm.
 	 */
 	void rebatchAllAlarmsLockedHoward(boolean doValidate) {
-		ArrayList<Alarm> oldSet = (ArrayList<Alarm>) mAlarmsInOrder.clone();
-		mAlarmBatches.clear();
-		mAlarmsInOrder.clear();
-		
-		final long nowElapsed = SystemClock.elapsedRealtime();
-		final int N = oldSet.size();
-		for (int i = 0; i < N; i++) {
-			Alarm a = oldSet.get(i);
-			long whenElapsed = convertToElapsed(a.when, a.type);
-			final long maxElapsed;
-			if (a.whenElapsed == a.maxWhen) {
-				// Exact
-				maxElapsed = whenElapsed;
-			} else {
-				// Not exact.  Preserve any explicit window, otherwise recalculate
-				// the window based on the alarm's new futurity.  Note that this
-				// reflects a policy of preferring timely to deferred delivery.
-				maxElapsed = (a.windowLength > 0)
-					? (whenElapsed + a.windowLength)
-					: maxTriggerTime(nowElapsed, whenElapsed, a.repeatInterval);
+		// Smallest allowed delay first, measured on the recomputed windows.
+		rebatchLocked(new ArrayList<Alarm>(mAlarmsByOperation.values()), sMaxDelaySizeOrder, doValidate);
+	}
+
+	/**
+	 * Identity of an alarm across re-registrations: creator uid, intent action and component.
+	 * Keys are interned by getAlarmKey(), so the id string, the hash, the dense slot of the
+	 * per-id models and the OFFLINE_SUPPORT match are computed once per key. An Alarm reaches
+	 * all of its per-key state through its key instead of rebuilding and hashing its id.
+	 */
+	static final class AlarmKey {
+		final int uid;
+		final boolean hasIntent;
+		final String action;
+		final ComponentName component;
+		private final int hash;
+
+		// Only set on interned keys.
+		final String id;
+		final int slot;
+		final int offlineInterval;
+		final int offlineNetwork;
+
+		// Hardware used by the last delivery. Rebuilt whenever that record changes, so
+		// batching reads an immutable HardwareSet instead of the record.
+		volatile MultiResourceManager.HardwareSet hardware = MultiResourceManager.HardwareSet.EMPTY;
+
+		// A lookup probe.
+		AlarmKey(int uid, Intent intent) {
+			this.uid = uid;
+			hasIntent = intent != null;
+			action = hasIntent ? intent.getAction() : null;
+			component = hasIntent ? intent.getComponent() : null;
+			int h = uid;
+			h = 31 * h + (hasIntent ? 1 : 0);
+			h = 31 * h + (action != null ? action.hashCode() : 0);
+			h = 31 * h + (component != null ? component.hashCode() : 0);
+			hash = h;
+			id = null;
+			slot = -1;
+			offlineInterval = 0;
+			offlineNetwork = 0;
+		}
+
+		AlarmKey(AlarmKey probe, String id, int slot) {
+			uid = probe.uid;
+			hasIntent = probe.hasIntent;
+			action = probe.action;
+			component = probe.component;
+			hash = probe.hash;
+			this.id = id;
+			this.slot = slot;
+
+			/*
+			 * Some applications' network usage aren't detected by current method.
+			 * Temporarily add the network usage by offline data.
+			 * TODO: Modify the detection method.
+			 */
+			int interval = 0, network = 0;
+			for (int i = 0; i < OFFLINE_SUPPORT.length; i++) {
+				if (id.contains(OFFLINE_SUPPORT[i][0])) {
+					interval = Integer.parseInt(OFFLINE_SUPPORT[i][1]);
+					network = Integer.parseInt(OFFLINE_SUPPORT[i][2]);
+					break;
+				}
 			}
-			setImplLocked(a.type, a.when, whenElapsed, a.windowLength, maxElapsed,
-					a.repeatInterval, a.operation, a.isStandalone, doValidate, a.workSource);
+			offlineInterval = interval;
+			offlineNetwork = network;
+		}
+
+		// Same format as the ids of the wakeup records.
+		String buildId() {
+			return hasIntent ? uid + action + component : uid + "null";
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this) return true;
+			if (!(obj instanceof AlarmKey)) return false;
+			AlarmKey o = (AlarmKey) obj;
+			return hash == o.hash && uid == o.uid && hasIntent == o.hasIntent
+				&& (action == null ? o.action == null : action.equals(o.action))
+				&& (component == null ? o.component == null : component.equals(o.component));
 		}
 	}
 
 	/*
-	 * Some applications' network usage aren't detected by current method.
-     	 * Temporarily add the network usage by offline data.
-	 * TODO: Modify the detection method.
+	 * Interned alarm keys. Keys are resolved once per alarm registration, and the repeating and
+	 * rebatched re-registrations reuse the key of the alarm they replace.
 	 */
-	private static int getOfflineSupport(String id, int index){
-		for(int i = 0; i < OFFLINE_SUPPORT.length; i++){
-			if(id.contains(OFFLINE_SUPPORT[i][0])){
-				return Integer.parseInt(OFFLINE_SUPPORT[i][index]);
+	private static final HashMap<AlarmKey, AlarmKey> mAlarmKeys = new HashMap<AlarmKey, AlarmKey>();
+	private static final HashMap<String, AlarmKey> mAlarmKeysById = new HashMap<String, AlarmKey>();
+	private static final ArrayList<AlarmKey> mAlarmKeysBySlot = new ArrayList<AlarmKey>();
+
+	private static AlarmKey getAlarmKey(PendingIntent operation) {
+		final AlarmKey probe = new AlarmKey(operation.getCreatorUid(), operation.getIntent());
+		synchronized (mAlarmKeys) {
+			AlarmKey key = mAlarmKeys.get(probe);
+			if (key == null) {
+				final String id = probe.buildId();
+				// Fields that print the same id share that id's key, as they shared its records.
+				key = mAlarmKeysById.get(id);
+				if (key == null) {
+					key = new AlarmKey(probe, id, mAlarmKeysBySlot.size());
+					mAlarmKeysBySlot.add(key);
+					mAlarmKeysById.put(id, key);
+				}
+				mAlarmKeys.put(probe, key);
 			}
+			return key;
+		}
+	}
+
+	/**
+	 * The key of a wakeup record id, or null if no alarm with that id was registered.
+	 */
+	private static AlarmKey getAlarmKey(String id) {
+		synchronized (mAlarmKeys) {
+			return mAlarmKeysById.get(id);
+		}
+	}
+
+	private static void setAlarmHardwareLocked(AlarmKey key, int[] hardwareUsage) {
+		if (key != null) {
+			key.hardware = MultiResourceManager.HardwareSet.of(hardwareUsage);
+		}
+	}
+
+	private static String getAlarmId(int slot) {
+		synchronized (mAlarmKeys) {
+			return mAlarmKeysBySlot.get(slot).id;
 		}
-		return 0;
 	}
 
 	/*
@@ -2667,7 +3780,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 	 * 10000~: for other alarms.
 	 */
 	private static int[] getExpAppHardware(PendingIntent pi){
-		int[] ret = new int[MultiResourceManager.NUM_HARDWARE];
+		int[] ret = new int[MultiResourceManager.MAX_HARDWARE];
 		int action = Integer.parseInt(pi.getIntent().getAction());
 
 		if(action >= 1 && action <= 35){
@@ -2724,7 +3837,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		// prior to that which contains no wakeups, we schedule that as well.
 		if (mAlarmBatches.size() > 0) {
 			final Batch firstWakeup = findFirstWakeupBatchLocked();
-			final Batch firstBatch = mAlarmBatches.get(0);
+			final Batch firstBatch = mAlarmBatches.peek();
 			if (firstWakeup != null && mNextWakeup != firstWakeup.when) {
 				mNextWakeup = firstWakeup.when;
 				setLocked(ELAPSED_REALTIME_WAKEUP, firstWakeup.when);	
@@ -2737,7 +3850,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		/* Old policy: maximum connected component.
 		if (mAlarmBatches.size() > 0) {	
 			final Batch firstWakeup = findMaximumConnectedBatch();
-			final Batch firstBatch = mAlarmBatches.get(0);
+			final Batch firstBatch = mAlarmBatches.peek();
 			if (firstWakeup != null && mNextWakeup != firstWakeup.when) {
 				mNextWakeup = firstWakeup.when;
 				if(mNextWakeupBatch != null){
@@ -2770,7 +3883,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 		// start of the list until we either empty it or hit a batch
 		// that is not yet deliverable
 		while (mAlarmBatches.size() > 0) {
-			Batch batch = mAlarmBatches.get(0);
+			Batch batch = mAlarmBatches.peek();
 
 			if (!batch.canTrigger(nowELAPSED)) {
 				// Everything else is scheduled for the future
@@ -2784,15 +3897,16 @@ class AlarmManagerService extends IAlarmManager.Stub {
 
 			// We will (re)schedule some alarms now; don't let that interfere
 			// with delivery of this current batch
-			mAlarmBatches.remove(0);
+			mAlarmBatches.poll();
+			noteDeliveredBatchLocked(batch);
 
 			final int N = batch.size();
 			for (int i = 0; i < N; i++) {
 				Alarm alarm = batch.get(i);
 				alarm.count = 1;
 				triggerList.add(alarm);
-
-				mAlarmsInOrder.remove(alarm);
+				mAlarmsByOperation.remove(alarm.operation);
+				alarm.batch = null;
 
 				// Recurring alarms may have passed several alarm intervals while the
 				// phone was asleep or off, so pass a trigger count when sending them.
@@ -2807,7 +3921,7 @@ class AlarmManagerService extends IAlarmManager.Stub {
 					setImplLocked(alarm.type, alarm.when + delta, nextElapsed, alarm.windowLength,
 							maxTriggerTime(nowELAPSED, nextElapsed, alarm.repeatInterval),
 							alarm.repeatInterval, alarm.operation, batch.standalone, true,
-							alarm.workSource);
+							alarm.workSource, alarm.key);
 				}
 
 			}
@@ -58,7 +58,6 @@ import android.os.UserHandle;
 import android.os.WorkSource;
 import android.os.ServiceManager;
 import android.os.MultiResourceManager;
-import android.os.IMultiResourceManagerService;
 import android.provider.Settings;
 import android.util.Log;
 import android.util.Slog;
@@ -1490,16 +1489,10 @@ public class LocationManagerService extends ILocationManager.Stub {
 			throw new IllegalArgumentException("provider doesn't exist: " + name);
 		}
 
-		IMultiResourceManagerService mrm = IMultiResourceManagerService.Stub.asInterface(ServiceManager.getService(Context.RESOURCE_MANAGER_SERVICE));
-
-		try {
-			if(name.contains("gps")){
-				mrm.grant(uid, MultiResourceManager.HARDWARE_GPS);
-			} else if(name.contains("network")){
-				mrm.grant(uid, MultiResourceManager.HARDWARE_AGPS);
-			}
-		} catch(Exception e) {
-			e.printStackTrace();
+		if(name.contains("gps")){
+			MultiResourceManager.reportGrant(uid, MultiResourceManager.HARDWARE_GPS);
+		} else if(name.contains("network")){
+			MultiResourceManager.reportGrant(uid, MultiResourceManager.HARDWARE_AGPS);
 		}
 
 		UpdateRecord record = new UpdateRecord(name, request, receiver);
@@ -36,7 +36,6 @@ import android.os.Process;
 import android.os.PowerManager;
 import android.os.Binder;
 import android.os.ServiceManager;
-import android.os.IMultiResourceManagerService;
 import android.os.MultiResourceManager;
 import android.util.Log;
 import android.view.Surface;
@@ -1066,13 +1065,7 @@ public class MediaPlayer implements SubtitleController.Listener
     public  void start() throws IllegalStateException {
         stayAwake(true);
 
-		IMultiResourceManagerService mrm = IMultiResourceManagerService.Stub.asInterface(ServiceManager.getService(Context.RESOURCE_MANAGER_SERVICE));
-
-		try {
-			mrm.grant(Binder.getCallingUid(), MultiResourceManager.HARDWARE_SOUND);
-		} catch(Exception e) {
-			e.printStackTrace();
-		}
+		MultiResourceManager.reportGrant(Binder.getCallingUid(), MultiResourceManager.HARDWARE_SOUND);
 
         _start();
     }
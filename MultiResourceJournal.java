@@ -0,0 +1,503 @@
+/*
+ *   framework/base/services/java/com/android/server/MultiResourceJournal.java
+ */
+
+package com.android.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary journal of the multi-resource events, and its decoder.
+ *
+ * This class only depends on the JDK so the decoder can be used offline:
+ *   java com.android.server.MultiResourceJournal multiResource.journal [fromRtc toRtc]
+ *
+ * File layout:
+ *   int magic, byte version, then pages until the end of file.
+ * Page layout:
+ *   int length (bytes of the body), int CRC32 of the body, then the body:
+ *   varint count, varint minTime, varint maxTime - minTime,
+ *   varint dictionary size, uid dictionary (ascending, first uid then deltas),
+ *   count records: byte type, zigzag varint time delta from the previous record, payload.
+ * Payload per type:
+ *   SCREEN:       zigzag (end - start), zigzag reason     (the record time is the end time)
+ *   FOCUS:        uid index
+ *   NOTIFICATION: uid index, zigzag hardware
+ *   GRANT:        uid index, varint hardware
+ *
+ * Every page carries its own dictionary and base time, so a page can be decoded or skipped
+ * on its own. A torn or corrupt page fails its CRC; readers stop there and trim() cuts it off
+ * before the next append, so a torn write loses at most the last page.
+ */
+public final class MultiResourceJournal {
+	public static final int MAGIC = 0x4D524A31; // "MRJ1"
+	public static final int VERSION = 1;
+
+	public static final int TYPE_SCREEN = 1;
+	public static final int TYPE_FOCUS = 2;
+	public static final int TYPE_NOTIFICATION = 3;
+	public static final int TYPE_GRANT = 4;
+
+	private static final int MAX_PAGE_RECORDS = 4096;
+	private static final int PAGE_HEADER = 8; // length, crc
+
+	private MultiResourceJournal() {
+	}
+
+	/**
+	 * Callback for decoded events.
+	 */
+	public interface Visitor {
+		void onScreen(long startTime, long endTime, int reason);
+		void onFocus(long time, int uid);
+		void onNotification(long time, int uid, int hardware);
+		void onGrant(long time, int uid, int hardware);
+	}
+
+	/**
+	 * Buffers records and encodes them into pages. Not thread safe.
+	 */
+	public static final class Writer {
+		private final OutputStream mOut;
+		private final byte[] mTypes = new byte[MAX_PAGE_RECORDS];
+		private final long[] mTimes = new long[MAX_PAGE_RECORDS];
+		private final long[] mAux = new long[MAX_PAGE_RECORDS];
+		private final int[] mUids = new int[MAX_PAGE_RECORDS];
+		private final int[] mValues = new int[MAX_PAGE_RECORDS];
+		private int mCount = 0;
+		private byte[] mPage = new byte[8192];
+		private int mPageLength = 0;
+
+		private final CRC32 mCrc = new CRC32();
+
+		/**
+		 * @param writeHeader true when out is positioned at the start of a new file. An existing
+		 *        file must have been through trim() first.
+		 */
+		public Writer(OutputStream out, boolean writeHeader) throws IOException {
+			mOut = out;
+			if(writeHeader) {
+				byte[] header = new byte[5];
+				putInt(header, 0, MAGIC);
+				header[4] = (byte)VERSION;
+				mOut.write(header);
+			}
+		}
+
+		public void screen(long startTime, long endTime, int reason) throws IOException {
+			add(TYPE_SCREEN, endTime, startTime, 0, reason);
+		}
+
+		public void focus(long time, int uid) throws IOException {
+			add(TYPE_FOCUS, time, 0, uid, 0);
+		}
+
+		public void notification(long time, int uid, int hardware) throws IOException {
+			add(TYPE_NOTIFICATION, time, 0, uid, hardware);
+		}
+
+		public void grant(long time, int uid, int hardware) throws IOException {
+			add(TYPE_GRANT, time, 0, uid, hardware);
+		}
+
+		private void add(int type, long time, long aux, int uid, int value) throws IOException {
+			if(mCount == MAX_PAGE_RECORDS) {
+				flush();
+			}
+			mTypes[mCount] = (byte)type;
+			mTimes[mCount] = time;
+			mAux[mCount] = aux;
+			mUids[mCount] = uid;
+			mValues[mCount] = value;
+			mCount++;
+		}
+
+		/**
+		 * Encode the buffered records as one page and write it.
+		 */
+		public void flush() throws IOException {
+			if(mCount == 0) {
+				return;
+			}
+
+			long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+			int[] dictionary = new int[mCount];
+			int dictionarySize = 0;
+			for(int i = 0; i < mCount; i++) {
+				minTime = Math.min(minTime, mTimes[i]);
+				maxTime = Math.max(maxTime, mTimes[i]);
+				if(mTypes[i] != TYPE_SCREEN) {
+					dictionary[dictionarySize++] = mUids[i];
+				}
+			}
+			Arrays.sort(dictionary, 0, dictionarySize);
+			int unique = 0;
+			for(int i = 0; i < dictionarySize; i++) {
+				if(unique == 0 || dictionary[unique - 1] != dictionary[i]) {
+					dictionary[unique++] = dictionary[i];
+				}
+			}
+			dictionarySize = unique;
+
+			mPageLength = PAGE_HEADER;
+			putVarLong(mCount);
+			putVarLong(minTime);
+			putVarLong(maxTime - minTime);
+			putVarLong(dictionarySize);
+			for(int i = 0; i < dictionarySize; i++) {
+				putVarLong(zigzag(i == 0 ? dictionary[0] : (long)dictionary[i] - dictionary[i - 1]));
+			}
+
+			long prevTime = minTime;
+			for(int i = 0; i < mCount; i++) {
+				final int type = mTypes[i];
+				ensure(1);
+				mPage[mPageLength++] = (byte)type;
+				putVarLong(zigzag(mTimes[i] - prevTime));
+				prevTime = mTimes[i];
+
+				switch(type) {
+					case TYPE_SCREEN:
+						putVarLong(zigzag(mTimes[i] - mAux[i]));
+						putVarLong(zigzag(mValues[i]));
+						break;
+					case TYPE_FOCUS:
+						putVarLong(Arrays.binarySearch(dictionary, 0, dictionarySize, mUids[i]));
+						break;
+					case TYPE_NOTIFICATION:
+						putVarLong(Arrays.binarySearch(dictionary, 0, dictionarySize, mUids[i]));
+						putVarLong(zigzag(mValues[i]));
+						break;
+					case TYPE_GRANT:
+						putVarLong(Arrays.binarySearch(dictionary, 0, dictionarySize, mUids[i]));
+						putVarLong(mValues[i]);
+						break;
+				}
+			}
+
+			mCrc.reset();
+			mCrc.update(mPage, PAGE_HEADER, mPageLength - PAGE_HEADER);
+			putInt(mPage, 0, mPageLength - PAGE_HEADER);
+			putInt(mPage, 4, (int)mCrc.getValue());
+			mOut.write(mPage, 0, mPageLength);
+			mOut.flush();
+			mCount = 0;
+		}
+
+		private void ensure(int n) {
+			if(mPageLength + n > mPage.length) {
+				mPage = Arrays.copyOf(mPage, Math.max(mPage.length * 2, mPageLength + n));
+			}
+		}
+
+		private void putVarLong(long v) {
+			ensure(10);
+			while((v & ~0x7FL) != 0) {
+				mPage[mPageLength++] = (byte)((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			mPage[mPageLength++] = (byte)v;
+		}
+	}
+
+	/**
+	 * Map the journal and decode the events whose time falls in [fromRtc, toRtc].
+	 * The file is never loaded onto the heap.
+	 */
+	public static void read(File file, long fromRtc, long toRtc, Visitor visitor) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), fromRtc, toRtc, visitor);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Drop a torn or corrupt tail and the leading pages that end before keepFromRtc, so the
+	 * file can be appended to. A torn tail is simply truncated; the file is rewritten only when
+	 * leading pages are dropped. A file without a valid header is emptied.
+	 */
+	public static void trim(File file, long keepFromRtc) throws IOException {
+		if(!file.exists()) {
+			return;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(!readHeader(buf)) {
+				raf.setLength(0);
+				return;
+			}
+
+			final int headerEnd = buf.position();
+			int first = -1;
+			int end = headerEnd;
+			for(int start = headerEnd; ; start = end) {
+				final int pageEnd = pageEnd(buf, start);
+				if(pageEnd < 0) {
+					break;
+				}
+				if(first < 0 && pageMaxTime(buf, start, pageEnd) >= keepFromRtc) {
+					first = start;
+				}
+				end = pageEnd;
+			}
+
+			if(first < 0) {
+				raf.setLength(0);
+			} else if(first == headerEnd) {
+				if(end < buf.capacity()) {
+					raf.setLength(end);
+				}
+			} else {
+				rewrite(file, buf, headerEnd, first, end);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Replace file with its header followed by the pages in [first, end).
+	 */
+	private static void rewrite(File file, ByteBuffer buf, int headerEnd, int first, int end) throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			final byte[] chunk = new byte[8192];
+			copy(buf, 0, headerEnd, chunk, out);
+			copy(buf, first, end, chunk, out);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if(!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Failure replacing " + file);
+		}
+	}
+
+	private static void copy(ByteBuffer buf, int from, int to, byte[] chunk, OutputStream out) throws IOException {
+		buf.position(from);
+		for(int left = to - from; left > 0; ) {
+			final int n = Math.min(left, chunk.length);
+			buf.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+			left -= n;
+		}
+	}
+
+	/**
+	 * Read the file header. Return false if it is not a journal of this version.
+	 */
+	private static boolean readHeader(ByteBuffer buf) {
+		buf.order(ByteOrder.BIG_ENDIAN);
+		return buf.remaining() >= 5 && buf.getInt() == MAGIC && buf.get() == VERSION;
+	}
+
+	/**
+	 * Return the end of the complete page at start, or -1 if it is torn or fails its CRC.
+	 */
+	private static int pageEnd(ByteBuffer buf, int start) {
+		final int body = start + PAGE_HEADER;
+		if(body > buf.limit()) {
+			return -1;
+		}
+		final int length = buf.getInt(start);
+		if(length <= 0 || length > buf.limit() - body) {
+			return -1;
+		}
+		final CRC32 crc = new CRC32();
+		final byte[] chunk = new byte[Math.min(length, 8192)];
+		final ByteBuffer in = buf.duplicate();
+		in.position(body);
+		for(int left = length; left > 0; ) {
+			final int n = Math.min(left, chunk.length);
+			in.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+			left -= n;
+		}
+		if((int)crc.getValue() != buf.getInt(start + 4)) {
+			return -1;
+		}
+		return body + length;
+	}
+
+	private static long pageMaxTime(ByteBuffer buf, int start, int pageEnd) {
+		final int limit = buf.limit();
+		try {
+			buf.limit(pageEnd);
+			buf.position(start + PAGE_HEADER);
+			getVarLong(buf);
+			return getVarLong(buf) + getVarLong(buf);
+		} catch (IOException e) {
+			return Long.MIN_VALUE;
+		} catch (BufferUnderflowException e) {
+			return Long.MIN_VALUE;
+		} finally {
+			buf.limit(limit);
+		}
+	}
+
+	/**
+	 * Decode the events whose time falls in [fromRtc, toRtc]. Pages outside the range are skipped
+	 * without being decoded. Decoding stops at the first torn or corrupt page.
+	 */
+	public static void read(ByteBuffer buf, long fromRtc, long toRtc, Visitor visitor) throws IOException {
+		if(!readHeader(buf)) {
+			throw new IOException("Not a multi-resource journal of version " + VERSION);
+		}
+
+		final int limit = buf.limit();
+		int[] dictionary = new int[64];
+		for(int start = buf.position(); ; ) {
+			final int pageEnd = pageEnd(buf, start);
+			if(pageEnd < 0) {
+				break;
+			}
+			try {
+				// Keep a malformed page from reading into the next one.
+				buf.limit(pageEnd);
+				buf.position(start + PAGE_HEADER);
+				dictionary = readPage(buf, fromRtc, toRtc, visitor, dictionary);
+			} catch (BufferUnderflowException e) {
+				break;
+			} finally {
+				buf.limit(limit);
+			}
+			start = pageEnd;
+		}
+	}
+
+	/**
+	 * Decode one page positioned at its body. Return the dictionary array, grown if needed.
+	 */
+	private static int[] readPage(ByteBuffer buf, long fromRtc, long toRtc, Visitor visitor, int[] dictionary)
+			throws IOException {
+		final int count = (int)getVarLong(buf);
+		final long minTime = getVarLong(buf);
+		final long maxTime = minTime + getVarLong(buf);
+		if(maxTime < fromRtc || minTime > toRtc) {
+			return dictionary;
+		}
+
+		final int dictionarySize = (int)getVarLong(buf);
+		if(dictionary.length < dictionarySize) {
+			dictionary = new int[dictionarySize];
+		}
+		for(int i = 0; i < dictionarySize; i++) {
+			long v = unzigzag(getVarLong(buf));
+			dictionary[i] = (int)(i == 0 ? v : dictionary[i - 1] + v);
+		}
+
+		long time = minTime;
+		for(int i = 0; i < count; i++) {
+			final int type = buf.get();
+			time += unzigzag(getVarLong(buf));
+			final boolean inRange = time >= fromRtc && time <= toRtc;
+
+			switch(type) {
+				case TYPE_SCREEN: {
+					long duration = unzigzag(getVarLong(buf));
+					int reason = (int)unzigzag(getVarLong(buf));
+					if(inRange) visitor.onScreen(time - duration, time, reason);
+					break;
+				}
+				case TYPE_FOCUS: {
+					int uid = dictionary[(int)getVarLong(buf)];
+					if(inRange) visitor.onFocus(time, uid);
+					break;
+				}
+				case TYPE_NOTIFICATION: {
+					int uid = dictionary[(int)getVarLong(buf)];
+					int hardware = (int)unzigzag(getVarLong(buf));
+					if(inRange) visitor.onNotification(time, uid, hardware);
+					break;
+				}
+				case TYPE_GRANT: {
+					int uid = dictionary[(int)getVarLong(buf)];
+					int hardware = (int)getVarLong(buf);
+					if(inRange) visitor.onGrant(time, uid, hardware);
+					break;
+				}
+				default:
+					throw new IOException("Unknown record type " + type + " at " + buf.position());
+			}
+		}
+		return dictionary;
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static long getVarLong(ByteBuffer buf) throws IOException {
+		long v = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			final byte b = buf.get();
+			v |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("Malformed varint at " + buf.position());
+	}
+
+	private static void putInt(byte[] b, int offset, int v) {
+		b[offset] = (byte)(v >>> 24);
+		b[offset + 1] = (byte)(v >>> 16);
+		b[offset + 2] = (byte)(v >>> 8);
+		b[offset + 3] = (byte)v;
+	}
+
+	/**
+	 * Print a journal in the same text form as MultiResourceManagerService.dump(), one line per event.
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length != 1 && args.length != 3) {
+			System.err.println("usage: MultiResourceJournal <journal> [fromRtc toRtc]");
+			System.exit(1);
+		}
+		final long from = args.length == 3 ? Long.parseLong(args[1]) : Long.MIN_VALUE;
+		final long to = args.length == 3 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+		final PrintStream out = System.out;
+
+		read(new File(args[0]), from, to, new Visitor() {
+			public void onScreen(long startTime, long endTime, int reason) {
+				out.println("SCREEN " + startTime + " " + endTime + " " + reason);
+			}
+
+			public void onFocus(long time, int uid) {
+				out.println("FOCUS " + time + " " + uid);
+			}
+
+			public void onNotification(long time, int uid, int hardware) {
+				out.println("NOTIFICATION " + time + " " + uid + " " + hardware);
+			}
+
+			public void onGrant(long time, int uid, int hardware) {
+				out.println("GRANT " + time + " " + uid + " " + hardware);
+			}
+		});
+	}
+}
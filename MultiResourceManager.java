@@ -12,6 +12,11 @@ import android.util.Log;
 import android.os.IMultiResourceManagerService;
 import android.util.Slog;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 public class MultiResourceManager {
@@ -53,12 +58,9 @@ public class MultiResourceManager {
 	public static final int HARDWARE_AGPS = 4;
 	public static final int HARDWARE_GPS = 5;
 	public static final int HARDWARE_SENSOR_ACC = 6;
-	public static final int NUM_HARDWARE = 7;
-
-	public static final String[] HARDWARE_STRING = {
-		"NETWORK", "VIBRATION", "SOUND", "SCREEN",
-		"AGPS", "GPS", "SENSOR_ACC"
-	};
+	// Capacity of HardwareRegistry. Bounds every hardware id, so per-hardware arrays and
+	// HardwareSet can be sized once.
+	public static final int MAX_HARDWARE = 16;
 
 	private static enum HARDWARE_ENERGY_LEVEL {
 		ONLY_CPU(13.5f), NETWORK_WIFI(0.5f), NETWORK_MOBILE(48.5f), VIBRATION(10.5f)
@@ -75,27 +77,240 @@ public class MultiResourceManager {
 		}
 	}
 
+	/**
+	 * The hardware components tracked by the resource manager: name, energy weight (in the
+	 * unit of HARDWARE_ENERGY_LEVEL) and whether using it is perceivable by the user.
+	 *
+	 * The built-in components keep their HARDWARE_* ids in every process. register() adds a
+	 * component with the next free id in system_server, where the grants are recorded and
+	 * the alarms batched; the id is not known to other processes, so a component added this
+	 * way needs its grant hook inside system_server. This overlay has no such component yet:
+	 * the hooks for Bluetooth, Wi-Fi scans, camera and microphone belong in services it does
+	 * not carry. Ids are dense and never reused; iterate them up to getCount().
+	 */
+	public static final class HardwareRegistry {
+		private static final String[] sNames = new String[MAX_HARDWARE];
+		private static final float[] sWeights = new float[MAX_HARDWARE];
+		// Written under the class lock before sCount publishes the new entry.
+		private static volatile int sCount = 0;
+		private static volatile int sPerceivableMask = 0;
+
+		static {
+			// NETWORK and AGPS are priced by the network type, see TailSharingEnergyModel.
+			add("NETWORK", 0.f, false);
+			add("VIBRATION", HARDWARE_ENERGY_LEVEL.VIBRATION.weight(), true);
+			add("SOUND", HARDWARE_ENERGY_LEVEL.SOUND.weight(), true);
+			add("SCREEN", HARDWARE_ENERGY_LEVEL.SCREEN.weight(), true);
+			add("AGPS", 0.f, false);
+			add("GPS", HARDWARE_ENERGY_LEVEL.GPS.weight(), false);
+			add("SENSOR_ACC", HARDWARE_ENERGY_LEVEL.SENSOR_ACC.weight(), false);
+		}
+
+		private HardwareRegistry() {
+		}
+
+		/**
+		 * Return the id of the component with this name, registering it first if needed.
+		 * @throws IllegalStateException outside system_server, or if MAX_HARDWARE components
+		 *         are registered already.
+		 */
+		public static int register(String name, float weight, boolean perceivable){
+			if(Process.myUid() != Process.SYSTEM_UID){
+				throw new IllegalStateException("Hardware components are registered in system_server only");
+			}
+			return add(name, weight, perceivable);
+		}
+
+		private static synchronized int add(String name, float weight, boolean perceivable){
+			for(int i = 0; i < sCount; i++){
+				if(sNames[i].equals(name))	return i;
+			}
+			if(sCount == MAX_HARDWARE){
+				throw new IllegalStateException("Too many hardware components, cannot add " + name);
+			}
+			final int id = sCount;
+			sNames[id] = name;
+			sWeights[id] = weight;
+			if(perceivable){
+				sPerceivableMask |= 1 << id;
+			}
+			sCount = id + 1;
+			return id;
+		}
+
+		public static int getCount(){
+			return sCount;
+		}
+
+		public static boolean isValid(int hardware){
+			return hardware >= 0 && hardware < sCount;
+		}
+
+		public static String getName(int hardware){
+			return isValid(hardware) ? sNames[hardware] : "HARDWARE_" + hardware;
+		}
+
+		public static float getWeight(int hardware){
+			return isValid(hardware) ? sWeights[hardware] : 0.f;
+		}
+
+		public static boolean isPerceivable(int hardware){
+			return (sPerceivableMask & (1 << hardware)) != 0;
+		}
+
+		/**
+		 * Mask with bit (1 << hardware) set for every perceivable component.
+		 */
+		public static int getPerceivableMask(){
+			return sPerceivableMask;
+		}
+	}
+
+	// Horizons for IMultiResourceManagerService.getAppUsageInWindow().
+	public static final int USAGE_WINDOW_HOUR = 0;
+	public static final int USAGE_WINDOW_DAY = 1;
+	public static final int USAGE_WINDOW_WEEK = 2;
+
+	// Policy domains and their policies, switched at runtime through
+	// IMultiResourceManagerService.setPolicy() or the matching POLICY_SETTINGS key.
+	public static final int POLICY_DOMAIN_COALESCING = 0;
+	public static final int POLICY_DOMAIN_NOTIFICATION = 1;
+	public static final int POLICY_DOMAIN_SCREEN = 2;
+	public static final int NUM_POLICY_DOMAINS = 3;
+
+	public static final int COALESCING_POLICY_ORIGINAL = 0;
+	public static final int COALESCING_POLICY_HOWARD = 1;
+	public static final int COALESCING_POLICY_HOWARD_REBATCH = 2;
+	public static final int COALESCING_POLICY_OVERHEAD_EXP = 3;
+	public static final int COALESCING_POLICY_FIXED_INTERVAL_5MIN = 4;
+	public static final int COALESCING_POLICY_FIXED_INTERVAL_3MIN = 5;
+
+	public static final int NOTIFICATION_POLICY_ORIGINAL = 0;
+	public static final int NOTIFICATION_POLICY_DEFERRED = 1;
+
+	public static final int SCREEN_POLICY_ORIGINAL = 0;
+	public static final int SCREEN_POLICY_COALESCED = 1;
+
+	// Policy names of each domain, indexed by policy.
+	public static final String[][] POLICY_STRING = {
+		{"ORIGINAL", "HOWARD", "HOWARD_REBATCH", "OVERHEAD_EXP", "FIXED_INTERVAL_5MIN", "FIXED_INTERVAL_3MIN"},
+		{"ORIGINAL", "DEFERRED"},
+		{"ORIGINAL", "COALESCED"}
+	};
+
+	// Settings.Global keys holding the active policy of each domain.
+	public static final String[] POLICY_SETTINGS = {
+		"multi_resource_coalescing_policy", "multi_resource_notification_policy", "multi_resource_screen_policy"
+	};
+
+	public static boolean isValidPolicy(int domain, int policy){
+		return domain >= 0 && domain < NUM_POLICY_DOMAINS
+			&& policy >= 0 && policy < POLICY_STRING[domain].length;
+	}
+
 	public static int TYPE_WIFI = 1;
         public static int TYPE_MOBILE = 2;
         public static int TYPE_NOT_CONNECTED = 0;
 
 	private static IMultiResourceManagerService mService;
 
+	// Grants reported by this process are flushed after GRANT_FLUSH_DELAY or GRANT_FLUSH_COUNT records.
+	private static final long GRANT_FLUSH_DELAY = 5; // ms
+	private static final int GRANT_FLUSH_COUNT = 32;
+	private static final Object sGrantLock = new Object();
+	private static GrantCoalescer sGrantCoalescer;
+
 	public MultiResourceManager(IMultiResourceManagerService service) {
 		mService = service;
 	}
 
-	public static boolean isPerceivable(int[] hardwareUsage){
-		if(hardwareUsage[HARDWARE_VIBRATION] > 0){
-			return true;
+	private static IMultiResourceManagerService getService() {
+		if(mService == null){
+			mService = IMultiResourceManagerService.Stub.asInterface(ServiceManager.getService(Context.RESOURCE_MANAGER_SERVICE));
+		}
+		return mService;
+	}
+
+	/**
+	 * Report that the hardware was granted to the uid. Never blocks on the resource manager.
+	 */
+	public static void reportGrant(int uid, int hardware){
+		synchronized (sGrantLock) {
+			if(sGrantCoalescer == null){
+				sGrantCoalescer = new GrantCoalescer();
+			}
+			sGrantCoalescer.add(uid, hardware, System.currentTimeMillis());
 		}
-		if(hardwareUsage[HARDWARE_SOUND] > 0){
-			return true;
+	}
+
+	/**
+	 * Gathers grants and hands them to the service in one oneway transaction.
+	 */
+	private static final class GrantCoalescer implements Runnable {
+		private final Handler mHandler;
+		private int[] mUids = new int[GRANT_FLUSH_COUNT];
+		private int[] mHardwares = new int[GRANT_FLUSH_COUNT];
+		private long[] mTimes = new long[GRANT_FLUSH_COUNT];
+		private int mCount = 0;
+
+		GrantCoalescer() {
+			HandlerThread thread = new HandlerThread(TAG);
+			thread.start();
+			mHandler = new Handler(thread.getLooper());
 		}
-		if(hardwareUsage[HARDWARE_SCREEN] > 0){
-			return true;
+
+		// Called with sGrantLock held.
+		void add(int uid, int hardware, long time) {
+			if(mCount == mUids.length){
+				// A flush is already posted; keep gathering until it runs.
+				mUids = Arrays.copyOf(mUids, mCount * 2);
+				mHardwares = Arrays.copyOf(mHardwares, mCount * 2);
+				mTimes = Arrays.copyOf(mTimes, mCount * 2);
+			}
+			mUids[mCount] = uid;
+			mHardwares[mCount] = hardware;
+			mTimes[mCount] = time;
+			mCount++;
+
+			if(mCount == GRANT_FLUSH_COUNT){
+				mHandler.removeCallbacks(this);
+				mHandler.post(this);
+			} else if(mCount == 1){
+				mHandler.postDelayed(this, GRANT_FLUSH_DELAY);
+			}
+		}
+
+		@Override
+		public void run() {
+			int[] uids, hardwares;
+			long[] times;
+			int count;
+
+			synchronized (sGrantLock) {
+				if(mCount == 0)	return;
+				uids = mUids;
+				hardwares = mHardwares;
+				times = mTimes;
+				count = mCount;
+				mUids = new int[GRANT_FLUSH_COUNT];
+				mHardwares = new int[GRANT_FLUSH_COUNT];
+				mTimes = new long[GRANT_FLUSH_COUNT];
+				mCount = 0;
+			}
+
+			try {
+				IMultiResourceManagerService service = getService();
+				if(service != null){
+					service.grantBatch(uids, hardwares, times, count);
+				}
+			} catch(RemoteException e) {
+				Slog.w(TAG, "Failure reporting " + count + " grants.", e);
+			}
 		}
-		return false;
+	}
+
+	public static boolean isPerceivable(int[] hardwareUsage){
+		return (getHardwareMask(hardwareUsage) & HardwareRegistry.getPerceivableMask()) != 0;
 	}
 
 	public static SIMILARITY getTimeSimilarity(long aWindowStart, long aWindowEnd, long aIntervalStart, long aIntervalEnd, long bWindowStart, long bWindowEnd, long bIntervalStart, long bIntervalEnd){
@@ -108,18 +323,10 @@ public class MultiResourceManager {
 		}
 	}
 
-	public static SIMILARITY getHardwareSimilarity(int[] aHardwareUsage, int[] bHardwareUsage){
-		if(aHardwareUsage == null || bHardwareUsage == null)	return SIMILARITY.LOW;
-		int aHardware = 0, bHardware = 0;
-		for(int i = 0; i < NUM_HARDWARE; i++){
-			if(aHardwareUsage[i] > 0){
-				aHardware += 1<<i;
-			}
-			if(bHardwareUsage[i] > 0){
-				bHardware += 1<<i;
-			}
-		}
-
+	/**
+	 * Similarity of two hardware masks, see HardwareSet.
+	 */
+	public static SIMILARITY getHardwareSimilarity(int aHardware, int bHardware){
 		if(aHardware != 0 && bHardware != 0){
 			if( aHardware == bHardware ){
 				// Completely identical.
@@ -135,77 +342,465 @@ public class MultiResourceManager {
 		}
 	}
 
-	/* public static float getHardwareWeight(int[] hardwareUsage){
-		float weight = 0.f;
-		int connectivityType = 0;
-		
-		for(int i = 0; i < NUM_HARDWARE; i++){
+	/**
+	 * Immutable summary of the hardware used by a piece of work: bit (1 << hardware) of mask is
+	 * set for each used hardware, and the use counts are packed COUNT_BITS apart in counts,
+	 * saturating at COUNT_MAX. Cheap to compare and to sum into a batch without allocating.
+	 * Only the first COUNTED_HARDWARE ids fit in the long, which covers the built-in ones;
+	 * components registered beyond them are tracked in mask only and count as 0.
+	 */
+	public static final class HardwareSet {
+		public static final int COUNT_BITS = 8;
+		public static final int COUNT_MAX = (1 << COUNT_BITS) - 1;
+		public static final int COUNTED_HARDWARE = Long.SIZE / COUNT_BITS;
+		public static final HardwareSet EMPTY = new HardwareSet(0, 0);
+
+		public final int mask;
+		public final long counts;
+
+		private HardwareSet(int mask, long counts){
+			this.mask = mask;
+			this.counts = counts;
+		}
+
+		public static HardwareSet of(int[] hardwareUsage){
+			if(hardwareUsage == null)	return EMPTY;
+			int mask = 0;
+			long counts = 0;
+			final int n = Math.min(hardwareUsage.length, HardwareRegistry.getCount());
+			for(int i = 0; i < n; i++){
+				if(hardwareUsage[i] > 0){
+					mask |= 1 << i;
+					if(i < COUNTED_HARDWARE){
+						counts |= (long)Math.min(hardwareUsage[i], COUNT_MAX) << (i * COUNT_BITS);
+					}
+				}
+			}
+			return mask == 0 ? EMPTY : new HardwareSet(mask, counts);
+		}
+
+		public boolean isPerceivable(){
+			return (mask & HardwareRegistry.getPerceivableMask()) != 0;
+		}
+
+		public static int getCount(long counts, int hardware){
+			if(hardware >= COUNTED_HARDWARE)	return 0;
+			return (int)(counts >>> (hardware * COUNT_BITS)) & COUNT_MAX;
+		}
+
+		/**
+		 * Sum two packed counts hardware by hardware, saturating at COUNT_MAX.
+		 */
+		public static long addCounts(long a, long b){
+			long sum = 0;
+			for(int i = 0; i < COUNTED_HARDWARE; i++){
+				final int c = getCount(a, i) + getCount(b, i);
+				sum |= (long)Math.min(c, COUNT_MAX) << (i * COUNT_BITS);
+			}
+			return sum;
+		}
+
+		public static String toString(long counts){
+			final int n = HardwareRegistry.getCount();
+			StringBuilder sb = new StringBuilder(3 * n);
+			sb.append('[');
+			for(int i = 0; i < n; i++){
+				if(i > 0)	sb.append(' ');
+				sb.append(getCount(counts, i));
+			}
+			return sb.append(']').toString();
+		}
+
+		@Override
+		public String toString(){
+			return toString(counts);
+		}
+	}
+
+	/**
+	 * Return a mask with bit (1 << hardware) set for each hardware with a positive usage.
+	 */
+	public static int getHardwareMask(int[] hardwareUsage){
+		int mask = 0;
+		if(hardwareUsage == null)	return mask;
+		final int n = Math.min(hardwareUsage.length, HardwareRegistry.getCount());
+		for(int i = 0; i < n; i++){
 			if(hardwareUsage[i] > 0){
-				switch(i){
-					case HARDWARE_NETWORK:
-						if(mService == null){
-							mService = IMultiResourceManagerService.Stub.asInterface(ServiceManager.getService(Context     .RESOURCE_MANAGER_SERVICE));
-						}
-						try {	
-							connectivityType = mService.getConnectivityType();
-						} catch(Exception e) {
-							e.printStackTrace();
-						}
+				mask |= 1 << i;
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Map the active network to TYPE_WIFI, TYPE_MOBILE or TYPE_NOT_CONNECTED.
+	 */
+	public static int getNetworkType(NetworkInfo activeNetwork){
+		if(activeNetwork != null){
+			if(activeNetwork.getType() == ConnectivityManager.TYPE_WIFI)
+				return TYPE_WIFI;
+			if(activeNetwork.getType() == ConnectivityManager.TYPE_MOBILE)
+				return TYPE_MOBILE;
+		}
+		return TYPE_NOT_CONNECTED;
+	}
+
+	/**
+	 * Prices the work done in one wakeup from the set of hardware it uses.
+	 */
+	public interface EnergyModel {
+		/**
+		 * @param hardwareMask bit (1 << hardware) for each hardware used.
+		 * @param wakeup whether the work wakes the CPU up.
+		 * @param networkType TYPE_WIFI, TYPE_MOBILE or TYPE_NOT_CONNECTED.
+		 * @return estimated energy, in the unit of HARDWARE_ENERGY_LEVEL.
+		 */
+		float getCost(int hardwareMask, boolean wakeup, int networkType);
+	}
+
+	/**
+	 * Energy saved by doing two pieces of work in one wakeup instead of two.
+	 * Every component used by both pays its ramp and tail only once.
+	 */
+	public static float getMergeSaving(EnergyModel model, int aMask, boolean aWakeup,
+			int bMask, boolean bWakeup, int networkType){
+		return model.getCost(aMask, aWakeup, networkType) + model.getCost(bMask, bWakeup, networkType)
+			- model.getCost(aMask | bMask, aWakeup || bWakeup, networkType);
+	}
+
+	/**
+	 * Default model on HARDWARE_ENERGY_LEVEL. Components that run together share their tail:
+	 * AGPS already keeps the radio up, so network use beside it is free, and GPS beside AGPS
+	 * is priced once at the larger of the two.
+	 */
+	public static final class TailSharingEnergyModel implements EnergyModel {
+		private static final int AGPS = 1 << HARDWARE_AGPS;
+		private static final int GPS = 1 << HARDWARE_GPS;
+		private static final int NETWORK = 1 << HARDWARE_NETWORK;
+
+		@Override
+		public float getCost(int hardwareMask, boolean wakeup, int networkType){
+			float weight = wakeup ? HARDWARE_ENERGY_LEVEL.ONLY_CPU.weight() : 0.f;
+
+			if((hardwareMask & AGPS) != 0 && networkType != TYPE_NOT_CONNECTED){
+				hardwareMask &= ~NETWORK;
+				float agps = networkType == TYPE_WIFI ? HARDWARE_ENERGY_LEVEL.AGPS_WIFI.weight()
+					: HARDWARE_ENERGY_LEVEL.AGPS_MOBILE.weight();
+				if((hardwareMask & GPS) != 0){
+					agps = Math.max(agps, HARDWARE_ENERGY_LEVEL.GPS.weight());
+					hardwareMask &= ~GPS;
+				}
+				weight += agps;
+				hardwareMask &= ~AGPS;
+			} else if((hardwareMask & AGPS) != 0){
+				// Without a network AGPS falls back to a plain GPS fix.
+				hardwareMask = (hardwareMask & ~AGPS) | GPS;
+			}
 
-						if(connectivityType == TYPE_WIFI)
-							weight += HARDWARE_ENERGY_LEVEL.NETWORK_WIFI.weight();
-						else
-							weight += HARDWARE_ENERGY_LEVEL.NETWORK_MOBILE.weight();
-						break;
-					case HARDWARE_VIBRATION:
-						weight += HARDWARE_ENERGY_LEVEL.VIBRATION.weight();
-						break;
-					case HARDWARE_SOUND:
-						weight += HARDWARE_ENERGY_LEVEL.SOUND.weight();
-						break;
-					case HARDWARE_SCREEN:
-						weight += HARDWARE_ENERGY_LEVEL.SCREEN.weight();
-						break;
-					case HARDWARE_AGPS:
-						if(mService == null){
-							mService = IMultiResourceManagerService.Stub.asInterface(ServiceManager.getService(Context     .RESOURCE_MANAGER_SERVICE));
-						}	
-						try {	
-							connectivityType = mService.getConnectivityType();
-						} catch(Exception e) {
-							e.printStackTrace();
+			for(int i = 0; i < HardwareRegistry.getCount(); i++){
+				if((hardwareMask & (1 << i)) == 0)	continue;
+				if(i == HARDWARE_NETWORK){
+					if(networkType == TYPE_WIFI)
+						weight += HARDWARE_ENERGY_LEVEL.NETWORK_WIFI.weight();
+					else if(networkType == TYPE_MOBILE)
+						weight += HARDWARE_ENERGY_LEVEL.NETWORK_MOBILE.weight();
+				} else {
+					weight += HardwareRegistry.getWeight(i);
+				}
+			}
+
+			return weight;
+		}
+	}
+
+	/**
+	 * Seqlock-protected snapshot of the resource manager state in a shared mapping, so that
+	 * system_server and client processes can answer the common queries without a binder call.
+	 *
+	 * The service maps SNAPSHOT_FILE read-write through getWriter(); every writer in
+	 * system_server shares that one instance. Other processes map the file read-only from the
+	 * descriptor returned by IMultiResourceManagerService.getStateSnapshot().
+	 *
+	 * Layout (big endian):
+	 *   int magic, int version, int sequence (odd while a write is in progress), int flags,
+	 *   int network type, int reserved (keeps the tables 8-byte aligned),
+	 *   MAX_APPS perceivability bits, then MAX_APPS longs of last focus time (rtc, -1 if none),
+	 *   both indexed by app id - FIRST_APPLICATION_UID. Perceivability is kept per app id like
+	 *   in the alarm manager; focus times are per uid in the service, so the table only holds
+	 *   the owner's uids, see focusIndex().
+	 *
+	 * The client mapping exposes the focus history, so getStateSnapshot()
+	 * requires PACKAGE_USAGE_STATS; other callers keep using the binder calls.
+	 *
+	 * Java 7 has no explicit fences; a store to a volatile field is a full barrier on every
+	 * runtime we ship, and it orders the accesses to the mapping around it as well.
+	 */
+	public static final class StateSnapshot {
+		public static final String SNAPSHOT_FILE = "/data/system/multiResource.snapshot";
+		public static final int MAGIC = 0x4D525353; // "MRSS"
+		public static final int VERSION = 1;
+		public static final int MAX_APPS = 4096;
+
+		public static final int FLAG_SCREEN_ON = 1;
+		// Set when isUserPerceivable() follows the bits; otherwise every uid is perceivable.
+		public static final int FLAG_PERCEIVABILITY = 2;
+
+		private static final int OFFSET_MAGIC = 0;
+		private static final int OFFSET_VERSION = 4;
+		private static final int OFFSET_SEQUENCE = 8;
+		private static final int OFFSET_FLAGS = 12;
+		private static final int OFFSET_NETWORK = 16;
+		private static final int OFFSET_PERCEIVABLE = 24;
+		private static final int OFFSET_FOCUS_TIME = OFFSET_PERCEIVABLE + MAX_APPS / 8;
+		public static final int SIZE = OFFSET_FOCUS_TIME + MAX_APPS * 8;
+
+		private static volatile int sFence;
+		private static StateSnapshot sWriter;
+		private static StateSnapshot sReader;
+		private static boolean sDenied;
+
+		private final ByteBuffer mBuffer;
+
+		private StateSnapshot(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+
+		private static void fence() {
+			sFence = 0;
+		}
+
+		/**
+		 * Index of uid in the per-app tables, or -1 if the snapshot does not cover it.
+		 */
+		public static int index(int uid) {
+			final int i = UserHandle.getAppId(uid) - Process.FIRST_APPLICATION_UID;
+			return i >= 0 && i < MAX_APPS ? i : -1;
+		}
+
+		/**
+		 * Index of uid in the focus time table, or -1 if the snapshot does not cover it.
+		 */
+		public static int focusIndex(int uid) {
+			return UserHandle.getUserId(uid) == UserHandle.USER_OWNER ? index(uid) : -1;
+		}
+
+		/**
+		 * The process-wide writer. Only usable in system_server; the first call resets the file.
+		 */
+		public static synchronized StateSnapshot getWriter() {
+			if(sWriter == null){
+				RandomAccessFile file = null;
+				try {
+					file = new RandomAccessFile(SNAPSHOT_FILE, "rw");
+					file.setLength(SIZE);
+					ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+					for(int i = 0; i < SIZE; i += 8){
+						buffer.putLong(i, i >= OFFSET_FOCUS_TIME ? -1 : 0);
+					}
+					buffer.putInt(OFFSET_VERSION, VERSION);
+					fence();
+					buffer.putInt(OFFSET_MAGIC, MAGIC);
+					sWriter = new StateSnapshot(buffer);
+				} catch(IOException e) {
+					Slog.e(TAG, "Failure mapping " + SNAPSHOT_FILE, e);
+				} finally {
+					if(file != null){
+						try {
+							file.close();
+						} catch(IOException e) {
 						}
+					}
+				}
+			}
+			return sWriter;
+		}
 
-						if(connectivityType == TYPE_WIFI)
-							weight += HARDWARE_ENERGY_LEVEL.AGPS_WIFI.weight();
-						else
-							weight += HARDWARE_ENERGY_LEVEL.AGPS_MOBILE.weight();
-						break;
-					case HARDWARE_GPS: 
-						weight += HARDWARE_ENERGY_LEVEL.GPS.weight();
-						break;
-					case HARDWARE_SENSOR_ACC:
-						weight += HARDWARE_ENERGY_LEVEL.SENSOR_ACC.weight();
-						break;
+		/**
+		 * The snapshot readable by this process, or null while the service is not up yet;
+		 * callers then fall back to the binder call.
+		 */
+		public static synchronized StateSnapshot get() {
+			if(sReader == null && !sDenied){
+				if(sWriter != null){
+					sReader = new StateSnapshot(sWriter.mBuffer.duplicate());
+				} else {
+					sReader = map();
 				}
 			}
+			return sReader;
+		}
+
+		private static StateSnapshot map() {
+			IMultiResourceManagerService service = getService();
+			if(service == null)	return null;
+			ParcelFileDescriptor pfd = null;
+			try {
+				pfd = service.getStateSnapshot();
+				if(pfd == null)	return null;
+				FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+				ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+				if(buffer.getInt(OFFSET_MAGIC) != MAGIC || buffer.getInt(OFFSET_VERSION) != VERSION){
+					Slog.w(TAG, "Unsupported state snapshot version " + buffer.getInt(OFFSET_VERSION));
+					return null;
+				}
+				return new StateSnapshot(buffer);
+			} catch(RemoteException e) {
+				return null;
+			} catch(SecurityException e) {
+				// Not retried; this process reads through the binder calls from now on.
+				sDenied = true;
+				return null;
+			} catch(IOException e) {
+				Slog.w(TAG, "Failure mapping the state snapshot.", e);
+				return null;
+			} finally {
+				if(pfd != null){
+					try {
+						pfd.close();
+					} catch(IOException e) {
+					}
+				}
+			}
+		}
+
+		// Writer side. Writers are serialized on the instance.
+
+		private int beginWrite() {
+			final int sequence = mBuffer.getInt(OFFSET_SEQUENCE) + 1;
+			mBuffer.putInt(OFFSET_SEQUENCE, sequence);
+			fence();
+			return sequence;
+		}
+
+		private void endWrite(int sequence) {
+			fence();
+			mBuffer.putInt(OFFSET_SEQUENCE, sequence + 1);
+		}
+
+		public synchronized void setFlag(int flag, boolean value) {
+			final int flags = mBuffer.getInt(OFFSET_FLAGS);
+			if(((flags & flag) != 0) == value)	return;
+			final int sequence = beginWrite();
+			mBuffer.putInt(OFFSET_FLAGS, value ? flags | flag : flags & ~flag);
+			endWrite(sequence);
+		}
+
+		public synchronized void setNetworkType(int networkType) {
+			final int sequence = beginWrite();
+			mBuffer.putInt(OFFSET_NETWORK, networkType);
+			endWrite(sequence);
+		}
+
+		/**
+		 * uid gained the focus at time, or had it then before a restart.
+		 */
+		public synchronized void setLastFocusTime(int uid, long time) {
+			final int i = focusIndex(uid);
+			if(i < 0)	return;
+			final int sequence = beginWrite();
+			mBuffer.putLong(OFFSET_FOCUS_TIME + i * 8, time);
+			endWrite(sequence);
+		}
+
+		public synchronized void setPerceivable(int uid, boolean perceivable) {
+			final int i = index(uid);
+			if(i < 0)	return;
+			final int offset = OFFSET_PERCEIVABLE + (i >> 3);
+			final int word = mBuffer.get(offset);
+			final int bit = 1 << (i & 7);
+			if(((word & bit) != 0) == perceivable)	return;
+			final int sequence = beginWrite();
+			mBuffer.put(offset, (byte)(perceivable ? word | bit : word & ~bit));
+			endWrite(sequence);
+		}
+
+		// Reader side. Each read retries until it sees no write in progress.
+
+		private int beginRead() {
+			int sequence;
+			while(((sequence = mBuffer.getInt(OFFSET_SEQUENCE)) & 1) != 0){
+				Thread.yield();
+			}
+			fence();
+			return sequence;
+		}
+
+		private boolean endRead(int sequence) {
+			fence();
+			return mBuffer.getInt(OFFSET_SEQUENCE) == sequence;
+		}
+
+		public int getNetworkType() {
+			int sequence, value;
+			do {
+				sequence = beginRead();
+				value = mBuffer.getInt(OFFSET_NETWORK);
+			} while(!endRead(sequence));
+			return value;
+		}
+
+		/**
+		 * Same as IMultiResourceManagerService.getLastFocusTime(). The uid must be covered by
+		 * focusIndex().
+		 */
+		public long getLastFocusTime(int uid) {
+			final int offset = OFFSET_FOCUS_TIME + focusIndex(uid) * 8;
+			int sequence;
+			long value;
+			do {
+				sequence = beginRead();
+				value = mBuffer.getLong(offset);
+			} while(!endRead(sequence));
+			return value;
+		}
+
+		/**
+		 * Same as IMultiResourceManagerService.isUserPerceivable(). The uid must be covered.
+		 */
+		public boolean isUserPerceivable(int uid) {
+			final int i = index(uid);
+			int sequence;
+			boolean value;
+			do {
+				sequence = beginRead();
+				value = (mBuffer.getInt(OFFSET_FLAGS) & FLAG_PERCEIVABILITY) == 0
+					|| (mBuffer.get(OFFSET_PERCEIVABLE + (i >> 3)) & (1 << (i & 7))) != 0;
+			} while(!endRead(sequence));
+			return value;
 		}
-	
-		return weight;
 	}
 
-	public static float getHardwareWeight(int[] aHardwareUsage, boolean isWakeup){
-		float weight = 0.f;
-		if(isWakeup){
-			weight += HARDWARE_ENERGY_LEVEL.ONLY_CPU.weight();
+	/**
+	 * Whether the last alarms of uid used a perceivable hardware. Reads the state snapshot when
+	 * it covers the uid, and asks the service otherwise.
+	 */
+	public static boolean isUserPerceivable(int uid) throws RemoteException {
+		final StateSnapshot snapshot = StateSnapshot.get();
+		if(snapshot != null && StateSnapshot.index(uid) >= 0){
+			return snapshot.isUserPerceivable(uid);
 		}
+		return getService().isUserPerceivable(uid);
+	}
 
-		if(aHardwareUsage == null){
-			return weight;
+	/**
+	 * The last focus time of uid, or -1 if none. Same fallback as isUserPerceivable().
+	 */
+	public static long getLastFocusTime(int uid) throws RemoteException {
+		final StateSnapshot snapshot = StateSnapshot.get();
+		if(snapshot != null && StateSnapshot.focusIndex(uid) >= 0){
+			return snapshot.getLastFocusTime(uid);
 		}
-		
-		weight += getHardwareWeight(aHardwareUsage);
+		return getService().getLastFocusTime(uid);
+	}
 
-		return weight;
-	} */
+	/**
+	 * The network type, TYPE_WIFI, TYPE_MOBILE or TYPE_NOT_CONNECTED.
+	 */
+	public static int getConnectivityType() throws RemoteException {
+		final StateSnapshot snapshot = StateSnapshot.get();
+		if(snapshot != null){
+			return snapshot.getNetworkType();
+		}
+		return getService().getConnectivityType();
+	}
 }
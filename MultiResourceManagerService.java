@@ -7,31 +7,64 @@ package com.android.server;
 import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.util.Pair;
+import android.util.SparseLongArray;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IMultiResourceManagerService;
+import android.os.Looper;
+import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
 import android.os.WorkSource;
 import android.os.MultiResourceManager;
 import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.database.ContentObserver;
+import android.provider.Settings;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.Writer;
-import java.io.FileWriter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Calendar;
-import java.lang.StringBuffer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
 
 class MultiResourceManagerService extends IMultiResourceManagerService.Stub
 {
@@ -42,48 +75,95 @@ class MultiResourceManagerService extends IMultiResourceManagerService.Stub
 	private static final int SCREEN_ON_USER = 0;
 	private static final int SCREEN_ON_WAKELOCK = 1;
 	private static final int SCREEN_ON_WINDOW_MANAGER = 2;
+	private static final int SCREEN_ON_COALESCED = 3;
 
-	private static final boolean USE_ORIGINAL_POLICY = true;
 	private static final boolean EVENT_LENGTH_LIMIT = true;
 	private static final int RECENT_LENGTH = 5;
 	private static final int HISTORY_LENGTH = 500;
+	private static final int GRANT_TIMELINE_LENGTH = 64;
+	private static final long GRANT_ERROR = 10 * 1000; // ms
+	private static final int GRANT_RING_LENGTH = 256; // must be a power of two
+	private static final long GRANT_DRAIN_DELAY = 20; // ms
+	private static final long ALERT_MAX_DEFERRAL = 60 * 1000; // ms, default priority
+	private static final long ALERT_MAX_DEFERRAL_LOW = 5 * 60 * 1000; // ms, low and min priority
+	private static final long ALERT_FLUSH_WINDOW = 15 * 1000; // ms
+	private static final long SCREEN_WAKE_MAX_DEFERRAL = 60 * 1000; // ms, non-perceivable apps
+	private static final long SCREEN_WAKE_WINDOW = 10 * 1000; // ms
 	private final long mStartTime = 120 * 1000; // ms
 
+	// Compile-time switch for the trace points; when false every trace call is stripped.
+	private static final boolean TRACE = true;
+	static final int TRACE_LEVEL_OFF = 0;
+	static final int TRACE_LEVEL_EVENT = 1;	// grants, notifications, focus, screen
+	static final int TRACE_LEVEL_VERBOSE = 2;	// plus every getIsGrant() query
+	private static final int TRACE_LENGTH = 1024; // must be a power of two
+	private volatile int mTraceLevel = TRACE_LEVEL_EVENT;
+	private final TraceRing mTrace = new TraceRing(TRACE_LENGTH);
+
 	private final Context mContext;
 	private AlarmManager mAlarmManager;
 	private NotificationManager mNotificationManager;
 
 	private int mCount = 0;
-	private HashMap<String, Long> mLastGrantTime = new HashMap<String, Long>();
-	private ArrayList<ArrayList<Pair<Integer, Long>>> mGrantHistory = new ArrayList<ArrayList<Pair<Integer, Long>>>();
+	// Grants published by binder threads, one ring per hardware, drained by mGrantHandler.
+	// Created on the first grant of each hardware, see getGrantRing().
+	private final AtomicReferenceArray<GrantRing> mGrantRings =
+		new AtomicReferenceArray<GrantRing>(MultiResourceManager.MAX_HARDWARE);
+	private final AtomicBoolean mGrantDrainScheduled = new AtomicBoolean(false);
+	private GrantHandler mGrantHandler;
+	private int[] mForwardUids = new int[GRANT_RING_LENGTH];
+	private int[] mForwardHardwares = new int[GRANT_RING_LENGTH];
+	// Grant timestamps for each (uid, hardware), keyed by grantKey().
+	private final LongSparseArray<GrantTimeline> mGrantTimeline = new LongSparseArray<GrantTimeline>();
 	private Object mLock = new Object();
 	private Calendar mLastDate;
+
+	// Event histories of the current day. At rollover the whole set is handed to
+	// mLogWriter and replaced by the spare one, so the event path only swaps references.
+	private History mHistory = new History();
+	private History mSpareHistory = new History();
+	private long mNextRolloverRtc;
+	private LogWriter mLogWriter;
+
+	// Usage, focus and grant state that survives a system_server restart.
+	private WarmState mWarmState;
 	private int mNetworkType;
 
+	// Screen, network, focus and perceivability for readers that skip binder; may be null.
+	private final MultiResourceManager.StateSnapshot mSnapshot;
+
+	// Active policies, switched by mPolicyRegistry.
+	private volatile int mCoalescingPolicy = MultiResourceManager.COALESCING_POLICY_ORIGINAL;
+	private volatile int mNotificationPolicy = MultiResourceManager.NOTIFICATION_POLICY_ORIGINAL;
+	private volatile int mScreenPolicy = MultiResourceManager.SCREEN_POLICY_ORIGINAL;
+	// Counters of each notification and screen policy. Guarded by mLock.
+	private final PolicyStats[] mNotificationStats = PolicyStats.create(MultiResourceManager.POLICY_DOMAIN_NOTIFICATION);
+	private final PolicyStats[] mScreenStats = PolicyStats.create(MultiResourceManager.POLICY_DOMAIN_SCREEN);
+	private PolicyRegistry mPolicyRegistry;
+
 	// For buffered event
-	ArrayList<Notification> mBufferedNotification = new ArrayList<Notification>();
-	ArrayList<WakeLock> mBufferedWakeLock = new ArrayList<WakeLock>();
-	ArrayList<Integer> mBufferedScreen = new ArrayList<Integer>();
+	private AlertScheduler mAlertScheduler;
+	private ScreenWakeScheduler mScreenWakeScheduler;
 
 	// For screen event
 	private ScreenEventReceiver mScreenEventReceiver;
-	ArrayList<ScreenEvent> mScreenOn = new ArrayList<ScreenEvent>();
 	private int mScreenOnReason = SCREEN_ON_DEFAULT;
 	private long mScreenOnTime = -1;
 	private boolean mIsScreenOn = false;
 
 	// For focus event
-	ArrayList<Integer> mFocusUid = new ArrayList<Integer>();
-	ArrayList<FocusEvent> mFocusEvent = new ArrayList<FocusEvent>();
+	// Recently focused apps and their decayed focus frequency.
+	private final FocusTracker mFocusTracker = new FocusTracker(RECENT_LENGTH);
+	private int mFocusedUid = -1;
+	private long mFocusedTime = -1;
 	private HashMap<Integer, Long> mLastFocusTime = new HashMap<Integer, Long>();
 
 	// For notification event
 	int mLastNotificationUid = 0;
-	ArrayList<NotificationEvent> mNotificationEvent = new ArrayList<NotificationEvent>();
 
 	// For apps' importance
-	long mAccumulatedScreenOnTime = 0;
-	private HashMap<Integer, Long> mAppUsage = new HashMap<Integer, Long>();
+	// Exponentially decayed usage shares per app id, see UsageTracker.
+	private final UsageTracker mUsageTracker = new UsageTracker();
 
 	// For network type
 	private ConnectionChangeReceiver mConnectionChangeReceiver;
@@ -94,16 +174,47 @@ class MultiResourceManagerService extends IMultiResourceManagerService.Stub
 		mContext = context;
 
 		mAlarmManager = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+		mSnapshot = MultiResourceManager.StateSnapshot.getWriter();
 		mNotificationManager = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
 
+		// Screen broadcasts only report changes, so start from the current state.
+		mIsScreenOn = ((PowerManager)context.getSystemService(Context.POWER_SERVICE)).isScreenOn();
+		if(mIsScreenOn) {
+			mScreenOnTime = System.currentTimeMillis();
+		}
+		ConnectivityManager cm = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		mNetworkType = MultiResourceManager.getNetworkType(cm.getActiveNetworkInfo());
+		if(mSnapshot != null) {
+			mSnapshot.setFlag(MultiResourceManager.StateSnapshot.FLAG_SCREEN_ON, mIsScreenOn);
+			mSnapshot.setNetworkType(mNetworkType);
+		}
+
 		mScreenEventReceiver = new ScreenEventReceiver();
 		mConnectionChangeReceiver = new ConnectionChangeReceiver();
 		mLastDate = Calendar.getInstance();
+		mNextRolloverRtc = nextMidnight(mLastDate.getTimeInMillis());
 
-		for(int i = 0; i < MultiResourceManager.NUM_HARDWARE; i++){
-			mGrantHistory.add(new ArrayList<Pair<Integer, Long>>());
+		HandlerThread logThread = new HandlerThread("MultiResourceLog");
+		logThread.start();
+		mLogWriter = new LogWriter(logThread.getLooper());
+
+		mWarmState = WarmState.open(this);
+		if(mWarmState != null) {
+			mLogWriter.scheduleCheckpoint(WarmState.CHECKPOINT_INTERVAL);
 		}
 
+		HandlerThread grantThread = new HandlerThread("MultiResourceGrant");
+		grantThread.start();
+		mGrantHandler = new GrantHandler(grantThread.getLooper());
+		mAlertScheduler = new AlertScheduler(grantThread.getLooper());
+		mScreenWakeScheduler = new ScreenWakeScheduler(grantThread.getLooper());
+
+		final long nowElapsed = SystemClock.elapsedRealtime();
+		mNotificationStats[mNotificationPolicy].start(nowElapsed);
+		mScreenStats[mScreenPolicy].start(nowElapsed);
+		mPolicyRegistry = new PolicyRegistry(mGrantHandler);
+		mPolicyRegistry.update();
+
 		Log.i(TAG,"MultiResourceManagerService is constructed!");
 		Log.i(HOWARD_TAG,"MultiResourceManagerService is constructed!");
 	}
@@ -112,23 +223,18 @@ class MultiResourceManagerService extends IMultiResourceManagerService.Stub
 	 * Whether grant the specified hardware usage in the duration or not.
 	 */
 	public boolean getIsGrant(int uid, long startRtc, long stopRtc, int hardware) {
-		String id = new String(uid + " " + hardware);
-		long time = getLastGrantTime(uid, hardware);
-		SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss");
-		Calendar cal = Calendar.getInstance();
+		boolean ret;
 
-		cal.setTimeInMillis(time);
-
-		Log.i(TAG,"isGrant(). id: " + id + " time: " + dateFormat.format(cal.getTime()));
-		Log.i(HOWARD_TAG,"isGrant(). id: " + id + " time: " + dateFormat.format(cal.getTime()));
-
-		long error = 10*1000;
+		synchronized (mLock) {
+			GrantTimeline timeline = mGrantTimeline.get(grantKey(uid, hardware));
+			ret = timeline != null && timeline.hasGrantIn(startRtc - GRANT_ERROR, stopRtc + GRANT_ERROR);
+		}
 
-		if(time > 0 && (time >= startRtc - error && time <= stopRtc + error)) {
-			return true;
+		if(TRACE && mTraceLevel >= TRACE_LEVEL_VERBOSE) {
+			mTrace.add(TraceRing.IS_GRANT, uid, hardware, ret ? 1 : 0);
 		}
 
-		return false;
+		return ret;
 	}
 
 	/**
@@ -136,43 +242,155 @@ class MultiResourceManagerService extends IMultiResourceManagerService.Stub
 	 * If the app didsn't request the hardware, return 0.
 	 */
 	public long getLastGrantTime(int uid, int hardware) {
-		String id = new String(uid + " " + hardware);
-		long time = mLastGrantTime.get(id) == null ? 0 : mLastGrantTime.get(id);
+		synchronized (mLock) {
+			GrantTimeline timeline = mGrantTimeline.get(grantKey(uid, hardware));
+			return timeline == null ? 0 : timeline.last();
+		}
+	}
 
-		return time;
+	/**
+	 * Return the mask with bit (1 << hardware) set for each hardware granted to the uid in the
+	 * duration. One call instead of a getIsGrant() per hardware.
+	 */
+	public int getGrantMask(int uid, long startRtc, long stopRtc) {
+		int mask = 0;
+		synchronized (mLock) {
+			final int n = MultiResourceManager.HardwareRegistry.getCount();
+			for(int hardware = 0; hardware < n; hardware++) {
+				GrantTimeline timeline = mGrantTimeline.get(grantKey(uid, hardware));
+				if(timeline != null && timeline.hasGrantIn(startRtc - GRANT_ERROR, stopRtc + GRANT_ERROR)) {
+					mask |= 1 << hardware;
+				}
+			}
+		}
+		return mask;
 	}
 
 	/**
 	 * Grant a hardware to the uid.
+	 * Called from arbitrary binder threads; only publishes the record and never blocks.
 	 */
 	public void grant(int uid, int hardware) {
+		if(!MultiResourceManager.HardwareRegistry.isValid(hardware)) {
+			return;
+		}
 		long nowRtc = System.currentTimeMillis();
-		Log.i(TAG, "grant(). uid: " + uid + " hardware: " + MultiResourceManager.HARDWARE_STRING[hardware]);
-		Log.i(HOWARD_TAG, "grant(). uid: " + uid + " hardware: " + MultiResourceManager.HARDWARE_STRING[hardware]);
-		String id = new String(uid + " " + hardware);
+		if(TRACE && mTraceLevel >= TRACE_LEVEL_EVENT) {
+			mTrace.add(TraceRing.GRANT, uid, hardware, 0);
+		}
+
+		getGrantRing(hardware).publish(uid, nowRtc);
+		scheduleGrantDrain();
+	}
 
-		mLastGrantTime.put(id, nowRtc);
-		mGrantHistory.get(hardware).add(new Pair(uid, nowRtc));	
+	private GrantRing getGrantRing(int hardware) {
+		GrantRing ring = mGrantRings.get(hardware);
+		if(ring == null) {
+			mGrantRings.compareAndSet(hardware, null, new GrantRing(GRANT_RING_LENGTH));
+			ring = mGrantRings.get(hardware);
+		}
+		return ring;
+	}
 
-		mAlarmManager.setLastGrantHardware(uid, hardware);
+	/**
+	 * Grants gathered by MultiResourceManager.reportGrant() in the calling process.
+	 * Apps may only report their own uid.
+	 */
+	public void grantBatch(int[] uids, int[] hardwares, long[] times, int count) {
+		final int callingUid = Binder.getCallingUid();
+		final boolean isApp = UserHandle.getAppId(callingUid) >= Process.FIRST_APPLICATION_UID;
+
+		count = Math.min(count, Math.min(uids.length, Math.min(hardwares.length, times.length)));
+		for(int i = 0; i < count; i++) {
+			final int hardware = hardwares[i];
+			if(!MultiResourceManager.HardwareRegistry.isValid(hardware)) {
+				continue;
+			}
+			if(isApp && uids[i] != callingUid) {
+				continue;
+			}
+			getGrantRing(hardware).publish(uids[i], times[i]);
+		}
+		scheduleGrantDrain();
+	}
 
-		if(hardware == MultiResourceManager.HARDWARE_VIBRATION || hardware == MultiResourceManager.HARDWARE_SOUND) {
-			addNotificationEvent(uid, hardware);
+	private void scheduleGrantDrain() {
+		if(mGrantDrainScheduled.compareAndSet(false, true)) {
+			mGrantHandler.sendEmptyMessageDelayed(GrantHandler.MSG_DRAIN, GRANT_DRAIN_DELAY);
 		}
 	}
 
 	/**
-	 * Add a notification record to history.
+	 * Apply the published grants to the history and forward them to the alarm manager.
+	 * Only runs on the grant thread.
 	 */
-	private void addNotificationEvent(int uid, int hardware) {
-		NotificationEvent n = new NotificationEvent(uid, System.currentTimeMillis(), hardware);
-		mNotificationEvent.add(n);
+	private void drainGrants() {
+		mGrantDrainScheduled.set(false);
+
+		int count = 0;
+		synchronized (mLock) {
+			final int n = MultiResourceManager.HardwareRegistry.getCount();
+			for(int hardware = 0; hardware < n; hardware++) {
+				GrantRing ring = mGrantRings.get(hardware);
+				if(ring == null) {
+					continue;
+				}
+				while(ring.poll()) {
+					applyGrantLocked(ring.polledUid, hardware, ring.polledTime);
 
-		if(EVENT_LENGTH_LIMIT){
-			while(mNotificationEvent.size() > HISTORY_LENGTH){
-				mNotificationEvent.remove(0);
+					if(count == mForwardUids.length) {
+						mForwardUids = Arrays.copyOf(mForwardUids, count * 2);
+						mForwardHardwares = Arrays.copyOf(mForwardHardwares, count * 2);
+					}
+					mForwardUids[count] = ring.polledUid;
+					mForwardHardwares[count] = hardware;
+					count++;
+				}
+				if(ring.dropped > 0) {
+					if(TRACE && mTraceLevel >= TRACE_LEVEL_EVENT) {
+						mTrace.add(TraceRing.GRANT_DROPPED, -1, hardware, ring.dropped);
+					}
+					ring.dropped = 0;
+				}
 			}
 		}
+
+		if(count > 0) {
+			mAlarmManager.setLastGrantHardwares(mForwardUids, mForwardHardwares, count);
+		}
+	}
+
+	private void applyGrantLocked(int uid, int hardware, long time) {
+		final long key = grantKey(uid, hardware);
+		GrantTimeline timeline = mGrantTimeline.get(key);
+		if(timeline == null) {
+			timeline = new GrantTimeline(GRANT_TIMELINE_LENGTH);
+			mGrantTimeline.put(key, timeline);
+		}
+		timeline.add(time);
+		if(mWarmState != null) {
+			mWarmState.logLocked(WarmState.RECORD_GRANT, key, time);
+		}
+		EventLog history = mHistory.grants(hardware);
+		history.setInt(history.append(time), 0, uid);
+
+		if(hardware == MultiResourceManager.HARDWARE_VIBRATION || hardware == MultiResourceManager.HARDWARE_SOUND) {
+			addNotificationEvent(uid, hardware, time);
+		}
+	}
+
+	private static long grantKey(int uid, int hardware) {
+		return ((long)uid << 32) | (hardware & 0xffffffffL);
+	}
+
+	/**
+	 * Add a notification record to history.
+	 */
+	private void addNotificationEvent(int uid, int hardware, long time) {
+		EventLog history = mHistory.notifications;
+		int row = history.append(time);
+		history.setInt(row, 0, uid);
+		history.setInt(row, 1, hardware);
 	}
 
 	/**
@@ -182,90 +400,322 @@ class MultiResourceManagerService extends IMultiResourceManagerService.Stub
 			int callingPid, int userId, int score, Notification notification) {
 
 		mLastNotificationUid = callingUid;
-		addNotificationEvent(mLastNotificationUid, MultiResourceManager.HARDWARE_DEFAULT);
-
-		Calendar c = Calendar.getInstance();
-
-		if( isResetRecord(c) ) {
-			dump2File();
+		final long nowRtc = System.currentTimeMillis();
+		synchronized (mLock) {
+			if(nowRtc >= mNextRolloverRtc) {
+				rolloverLocked(nowRtc);
+			}
+			addNotificationEvent(mLastNotificationUid, MultiResourceManager.HARDWARE_DEFAULT, nowRtc);
+		}
 
-			//mScreenOn.clear();
+		final int policy = mNotificationPolicy;
+		final boolean ret = policy == MultiResourceManager.NOTIFICATION_POLICY_ORIGINAL
+			|| isServeNotificationInternel(	callingUid, score, notification);
 
-			//mFocusEvent.clear();
-			//mNotificationEvent.clear();
-			mLastDate.setTimeInMillis(c.getTimeInMillis());
+		synchronized (mLock) {
+			mNotificationStats[policy].noteRequest(ret);
 		}
+		return ret;
+	}
 
-		if(USE_ORIGINAL_POLICY) {
-			return true;
+	/**
+	 * Called by the alarm manager after it triggers wakeup batches.
+	 * hardwareMask has bit (1 << hardware) set for each hardware the batches are expected to use.
+	 */
+	public void alarmBatchDelivered(int hardwareMask) {
+		if(Binder.getCallingUid() != Process.SYSTEM_UID) {
+			return;
 		}
+		mAlertScheduler.requestFlush(AlertScheduler.FLUSH_ALARM, hardwareMask);
+	}
 
-		return isServeNotificationInternel(	callingUid, notification);
+	/**
+	 * Hand the day's history to the log writer and start a new one.
+	 */
+	private void rolloverLocked(long nowRtc) {
+		History done = mHistory;
+		mHistory = mSpareHistory != null ? mSpareHistory : new History();
+		mSpareHistory = null;
+		mLogWriter.write(done, mLastDate.getTimeInMillis());
+
+		mLastDate.setTimeInMillis(nowRtc);
+		mNextRolloverRtc = nextMidnight(nowRtc);
 	}
 
-	private boolean isResetRecord(Calendar c) {
-		return mLastDate.get(Calendar.DATE) != c.get(Calendar.DATE) ? true : false;
+	private static long nextMidnight(long rtc) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(rtc);
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		c.add(Calendar.DAY_OF_MONTH, 1);
+		return c.getTimeInMillis();
 	}
 
-	private void dump2File() {
-		try {
-			File file = new File("/data/system/log/" + rtc2Str(mLastDate.getTimeInMillis()) + "_multiResource.log");
-			Writer wt = new FileWriter(file);
-			PrintWriter pw = new PrintWriter(wt);
-			String[] tempS = new String[0];
-			FileDescriptor tempFd = null;
+	/**
+	 * dumpsys multiresource [trace [level <0-2> | --binary]]
+	 */
+	protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+		// Also guards "trace level", which changes what the service records.
+		if(mContext.checkCallingOrSelfPermission(android.Manifest.permission.DUMP)
+				!= PackageManager.PERMISSION_GRANTED) {
+			pw.println("Permission Denial: can't dump MultiResourceManager from from pid="
+					+ Binder.getCallingPid()
+					+ ", uid=" + Binder.getCallingUid());
+			return;
+		}
+
+		if(args != null && args.length > 0 && "trace".equals(args[0])) {
+			dumpTrace(fd, pw, args);
+			return;
+		}
+
+		dumpHeader(pw, System.currentTimeMillis());
+
+		synchronized (mLock) {
+			final long nowElapsed = SystemClock.elapsedRealtime();
+			pw.print("Policies: coalescing=");
+			pw.print(MultiResourceManager.POLICY_STRING[MultiResourceManager.POLICY_DOMAIN_COALESCING][mCoalescingPolicy]);
+			pw.print(" notification=");
+			pw.print(MultiResourceManager.POLICY_STRING[MultiResourceManager.POLICY_DOMAIN_NOTIFICATION][mNotificationPolicy]);
+			pw.print(" screen=");
+			pw.println(MultiResourceManager.POLICY_STRING[MultiResourceManager.POLICY_DOMAIN_SCREEN][mScreenPolicy]);
+			PolicyStats.dump(pw, "notification", MultiResourceManager.POLICY_DOMAIN_NOTIFICATION, mNotificationStats, nowElapsed);
+			PolicyStats.dump(pw, "screen", MultiResourceManager.POLICY_DOMAIN_SCREEN, mScreenStats, nowElapsed);
+			pw.println();
+
+			dumpHistory(pw, mHistory);
+
+			if(mWarmState != null) {
+				pw.println();
+				mWarmState.dumpLocked(pw);
+			}
+		}
+	}
 
-			dump(tempFd, pw, tempS);
+	private void dumpTrace(FileDescriptor fd, PrintWriter pw, String[] args) {
+		if(args.length == 3 && "level".equals(args[1])) {
+			try {
+				mTraceLevel = Math.max(TRACE_LEVEL_OFF, Math.min(TRACE_LEVEL_VERBOSE, Integer.parseInt(args[2])));
+				pw.println("Trace level: " + mTraceLevel);
+			} catch (NumberFormatException e) {
+				pw.println("Bad trace level: " + args[2]);
+			}
+			return;
+		}
 
+		if(args.length == 2 && "--binary".equals(args[1])) {
 			pw.flush();
-			pw.close();
-			wt.close();
-		} catch (Exception e) {
-			Log.e(TAG, "Failure writing daily file.", e);
-			Log.e(HOWARD_TAG, "Failure writing daily file.", e);
+			try {
+				// The descriptor belongs to the caller, so flush but never close it.
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fd)));
+				mTrace.write(out);
+				out.flush();
+			} catch (IOException e) {
+				Log.e(TAG, "Failure writing trace.", e);
+			}
+			return;
 		}
+
+		pw.print("Trace (level=");
+		pw.print(mTraceLevel);
+		pw.println("):");
+		mTrace.dump(pw);
 	}
 
-	protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
-		final long now = System.currentTimeMillis();
+	private static void dumpHeader(PrintWriter pw, long now) {
 		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 		pw.print("Multi-resource Manager (now=");
 		pw.print(sdf.format(new Date(now)));
 		pw.println("):");
+	}
+
+	private static void dumpHistory(PrintWriter pw, History h) {
+		pw.println();
+		pw.println("ScreenEvent:");
+		for(int i = 0; i < h.screenOn.size(); i++) {
+			pw.print(h.screenOn.getLong(i, 1)); pw.print(" ");
+			pw.print(h.screenOn.getTime(i)); pw.print(" ");
+			pw.print(h.screenOn.getInt(i, 0)); pw.println(" ");
+		}
+
+		pw.println();
+		pw.println("FocusEvent:");
+		for(int i = 0; i < h.focus.size(); i++) {
+			pw.print(h.focus.getTime(i)); pw.print(" ");
+			pw.print(h.focus.getInt(i, 0)); pw.println(" ");
+		}
+
+		pw.println();
+		pw.println("NotificationEvent:");
+		for(int i = 0; i < h.notifications.size(); i++) {
+			pw.print(h.notifications.getTime(i)); pw.print(" ");
+			pw.print(h.notifications.getInt(i, 0)); pw.print(" ");
+			pw.print(h.notifications.getInt(i, 1)); pw.println(" ");
+		}
+
+		pw.println();
+		pw.println("HardwareUsage:");
+		for(int i = 0; i < h.grants.length; i++){
+			EventLog history = h.grants[i];
+			if(history == null)	continue;
+			pw.println("  Hardware " + MultiResourceManager.HardwareRegistry.getName(i) + ":");
+			for(int j = 0; j < history.size(); j++){
+				pw.print(history.getTime(j)); pw.print(" ");
+				pw.println(history.getInt(j, 0));
+			}
+		}
+	}
 
+	/**
+	 * Called by mLogWriter once a rolled-over history has been written.
+	 */
+	private void recycleHistory(History h) {
+		h.clear();
 		synchronized (mLock) {
-			pw.println();
-			pw.println("ScreenEvent:");
-			if (mScreenOn.size() > 0) {
-				for(ScreenEvent s : mScreenOn) {
-					pw.println(s.toString());
+			if(mSpareHistory == null) {
+				mSpareHistory = h;
+			}
+		}
+	}
+
+	/**
+	 * Writes rolled-over histories to the daily log file on its own thread.
+	 */
+	private final class LogWriter extends Handler {
+		private static final int MSG_WRITE = 1;
+		private static final int MSG_CHECKPOINT = 2;
+		private static final String LOG_DIR = "/data/system/log/";
+		private static final String LOG_SUFFIX = "_multiResource.log";
+		private static final int LOG_RETENTION = 30; // files
+		private static final String JOURNAL_FILE = LOG_DIR + "multiResource.journal";
+		private static final long JOURNAL_RETENTION = LOG_RETENTION * 24 * 60 * 60 * 1000L; // ms, as many days as files
+
+		public LogWriter(Looper looper) {
+			super(looper);
+		}
+
+		public void write(History h, long dayRtc) {
+			obtainMessage(MSG_WRITE, new Pair<History, Long>(h, dayRtc)).sendToTarget();
+		}
+
+		public void scheduleCheckpoint(long delay) {
+			removeMessages(MSG_CHECKPOINT);
+			sendEmptyMessageDelayed(MSG_CHECKPOINT, delay);
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			if(msg.what == MSG_CHECKPOINT) {
+				mWarmState.checkpoint();
+				scheduleCheckpoint(WarmState.CHECKPOINT_INTERVAL);
+				return;
+			}
+			if(msg.what != MSG_WRITE) {
+				return;
+			}
+			Pair<History, Long> p = (Pair<History, Long>)msg.obj;
+			writeFile(p.first, p.second);
+			writeJournal(p.first);
+			recycleHistory(p.first);
+			deleteOldFiles();
+		}
+
+		private void writeFile(History h, long dayRtc) {
+			FileOutputStream out = null;
+			try {
+				out = new FileOutputStream(new File(LOG_DIR + rtc2Str(dayRtc) + LOG_SUFFIX));
+				PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out), 8192));
+
+				dumpHeader(pw, System.currentTimeMillis());
+				dumpHistory(pw, h);
+
+				pw.flush();
+				out.getFD().sync();
+			} catch (Exception e) {
+				Log.e(TAG, "Failure writing daily file.", e);
+				Log.e(HOWARD_TAG, "Failure writing daily file.", e);
+			} finally {
+				if(out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+					}
 				}
 			}
+		}
 
-			pw.println();
-			pw.println("FocusEvent:");
-			if (mFocusEvent.size() > 0) {
-				for(FocusEvent fa : mFocusEvent) {
-					pw.println(fa.toString());
+		/**
+		 * Append the history to the binary journal, see MultiResourceJournal. A torn page from an
+		 * earlier write and pages past the retention are cut off first.
+		 */
+		private void writeJournal(History h) {
+			FileOutputStream out = null;
+			try {
+				File file = new File(JOURNAL_FILE);
+				MultiResourceJournal.trim(file, System.currentTimeMillis() - JOURNAL_RETENTION);
+				final boolean isNew = !file.exists() || file.length() == 0;
+				out = new FileOutputStream(file, true);
+				MultiResourceJournal.Writer w = new MultiResourceJournal.Writer(out, isNew);
+
+				for(int i = 0; i < h.screenOn.size(); i++) {
+					w.screen(h.screenOn.getLong(i, 1), h.screenOn.getTime(i), h.screenOn.getInt(i, 0));
+				}
+				for(int i = 0; i < h.focus.size(); i++) {
+					w.focus(h.focus.getTime(i), h.focus.getInt(i, 0));
+				}
+				for(int i = 0; i < h.notifications.size(); i++) {
+					w.notification(h.notifications.getTime(i), h.notifications.getInt(i, 0), h.notifications.getInt(i, 1));
+				}
+				for(int hardware = 0; hardware < h.grants.length; hardware++) {
+					EventLog history = h.grants[hardware];
+					if(history == null)	continue;
+					for(int i = 0; i < history.size(); i++) {
+						w.grant(history.getTime(i), history.getInt(i, 0), hardware);
+					}
+				}
+
+				w.flush();
+				out.getFD().sync();
+			} catch (IOException e) {
+				Log.e(TAG, "Failure writing journal.", e);
+			} finally {
+				if(out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+					}
 				}
 			}
+		}
 
-			pw.println();
-			pw.println("NotificationEvent:");
-			if (mNotificationEvent.size() > 0) {
-				for(NotificationEvent ne : mNotificationEvent) {
-					pw.println(ne.toString());
+		private void deleteOldFiles() {
+			File[] files = new File(LOG_DIR).listFiles();
+			if(files == null) {
+				return;
+			}
+
+			ArrayList<File> logs = new ArrayList<File>();
+			for(File f : files) {
+				if(f.getName().endsWith(LOG_SUFFIX)) {
+					logs.add(f);
 				}
 			}
+			if(logs.size() <= LOG_RETENTION) {
+				return;
+			}
 
-			pw.println();
-			pw.println("HardwareUsage:");
-			for(int i = 0; i < MultiResourceManager.NUM_HARDWARE; i++){
-				pw.println("  Hardware " + MultiResourceManager.HARDWARE_STRING[i] + ":");
-				if (mGrantHistory.get(i).size() > 0) {
-					for(Pair p : mGrantHistory.get(i)){
-						pw.println(p.second + " " + p.first);
-					}
+			Collections.sort(logs, new Comparator<File>() {
+				@Override
+				public int compare(File a, File b) {
+					long diff = a.lastModified() - b.lastModified();
+					return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+				}
+			});
+			for(int i = 0; i < logs.size() - LOG_RETENTION; i++) {
+				if(!logs.get(i).delete()) {
+					Log.w(TAG, "Failure deleting " + logs.get(i));
 				}
 			}
 		}
@@ -274,36 +724,32 @@ class MultiResourceManagerService extends IMultiResourceManagerService.Stub
 	/**
 	 * Policy of audio, vibration.
 	 */
-	private boolean isServeNotificationInternel(int callingUid, Notification notification) {
-		int size = mBufferedNotification.size();
+	private boolean isServeNotificationInternel(int callingUid, int score, Notification notification) {
 		long elapsedTime = android.os.SystemClock.elapsedRealtime();
 
-		Log.i(TAG,"isServeNotificationInternel(). count = " + size);
-		Log.i(HOWARD_TAG,"isServeNotificationInternel(). count = " + size);
-
 		if(elapsedTime < mStartTime) {
 			return true;
 		}
 
-		if(size % 100 == 0 && size > 0) {
-			for(Notification n : mBufferedNotification) {
-				Log.i(TAG,"isServeNotification(). notify = " + n.toString());
-				Log.i(HOWARD_TAG,"isServeNotificationInternel(). count = " + size);
-				mNotificationManager.notify(0,n);
-				n.isBuffered = false;
-			}
-			mBufferedNotification = new ArrayList<Notification>();
-
-			return true;
+		synchronized (mLock) {
+			return mAlertScheduler.serveLocked(callingUid, score, notification, elapsedTime);
 		}
-		else {
-			Log.i(TAG,"isServeNotification(). Buffered = " + notification.toString());
-			Log.i(HOWARD_TAG,"isServeNotificationInternel(). count = " + size);
-			notification.isBuffered = true;
-			notification.bufferedUid = callingUid;
-			mBufferedNotification.add(notification);
-			return false;
+	}
+
+	/**
+	 * How long the alert of a notification with this score may be deferred.
+	 * The score is the notification priority times 10.
+	 */
+	private static long maxAlertDeferral(int score) {
+		if(score > 0) {
+			return 0;
 		}
+		return score < 0 ? ALERT_MAX_DEFERRAL_LOW : ALERT_MAX_DEFERRAL;
+	}
+
+	private static boolean hasAlert(Notification n) {
+		return (n.defaults & (Notification.DEFAULT_SOUND | Notification.DEFAULT_VIBRATE)) != 0
+				|| n.sound != null || n.vibrate != null;
 	}
 
 	/**
@@ -318,71 +764,31 @@ class MultiResourceManagerService extends IMultiResourceManagerService.Stub
 
 		mScreenOnReason = SCREEN_ON_WINDOW_MANAGER;
 
-		if(USE_ORIGINAL_POLICY) {
-			return true;
-		}
-
 		return isServeScreenInternal(uid);
 	}
 
-	private boolean isServeScreenInternal(int uid) {
-		ArrayList<Integer> source = new ArrayList<Integer>();
-
-		source.add(uid);
-
-		boolean ret = isServeScreenInternal(source);
-
-		if(!ret) {
-			mBufferedScreen.add(new Integer(uid));
-		}
-
-		return ret;
-	}
-
 	/**
 	 * Policy of screen.
 	 */
-	private boolean isServeScreenInternal(ArrayList<Integer> source) {
-		int size = mBufferedWakeLock.size() + mBufferedScreen.size();
-		long elapsedTime = android.os.SystemClock.elapsedRealtime();
-
-		Log.i(TAG,"isServeScreenInternal(). count = " + size);
-		Log.i(HOWARD_TAG,"isServeScreenInternal(). count = " + size);
+	private boolean isServeScreenInternal(int uid) {
+		long elapsedTime = SystemClock.elapsedRealtime();
+		final int policy = mScreenPolicy;
 
-		if(elapsedTime < mStartTime) {
+		if(policy == MultiResourceManager.SCREEN_POLICY_ORIGINAL || elapsedTime < mStartTime) {
+			synchronized (mLock) {
+				mScreenStats[policy].noteRequest(true);
+			}
 			return true;
 		}
 
-		if(size % 100 == 0 && size > 0) {
-			/*PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
-			  PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.ACQUIRE_CAUSES_WAKEUP| PowerManager.PARTIAL_WAKE_LOCK,
-			  Context.RESOURCE_MANAGER_SERVICE);
+		// Asks the alarm manager, so it must not be called with mLock held.
+		final boolean perceivable = UserHandle.getAppId(uid) < Process.FIRST_APPLICATION_UID
+				|| isUserPerceivable(uid);
 
-			  wakeLock.acquire();
-			  wakeLock.release();
-			 */
-			StringBuffer sb = new StringBuffer(128);
-
-			for(int n : mBufferedScreen) {
-				sb.append(n);
-				sb.append(" ");
-			}
-			sb.append("\n");
-
-			for(WakeLock w : mBufferedWakeLock) {
-				sb.append(w);
-				sb.append("\n");
-			}
-
-			mBufferedWakeLock = new ArrayList<WakeLock>();
-			mBufferedScreen = new ArrayList<Integer>();
-
-			Log.i(TAG,"isServeScreenInternal(). Buffered = " + sb.toString());
-			Log.i(HOWARD_TAG,"isServeScreenInternal(). Buffered = " + sb.toString());
-			return true;
-		}
-		else {
-			return false;
+		synchronized (mLock) {
+			final boolean ret = mScreenWakeScheduler.serveLocked(uid, perceivable, elapsedTime);
+			mScreenStats[policy].noteRequest(ret);
+			return ret;
 		}
 	}
 
@@ -393,53 +799,64 @@ class MultiResourceManagerService extends IMultiResourceManagerService.Stub
 
 		mScreenOnReason = SCREEN_ON_WAKELOCK;
 
-		if(USE_ORIGINAL_POLICY) {
-			return true;
-		}
-
 		WakeLock w = new WakeLock(flags, tag, ws, uid, pid);
 
 		if(isScreenAcquireLock(w)) {
-			return isServeScreenInternal(w);
+			// Has to deal with WorkSource?
+			return isServeScreenInternal(w.mOwnerUid);
 		}
 
 		return true;
 	}
 
-	private boolean isServeScreenInternal(final WakeLock w) {
-		ArrayList<Integer> source = new ArrayList<Integer>();
-
-		source.add(w.mOwnerUid);
-
-		// Has to deal with WorkSource?
+	/**
+	 * The focus window has changed.
+	 */
+	public void focusChanged(int uid) {
+		long nowRtc = System.currentTimeMillis();
 
-		boolean ret = isServeScreenInternal(source);
+		synchronized (mLock) {
+			final int lastUid = mFocusedUid;
+			final long lastTime = mFocusedTime;
 
-		if(!ret) {
-			mBufferedWakeLock.add(w);
+			addFocusUid(uid, nowRtc);
+			if(addFocusEvent(uid, nowRtc) && lastUid != -1) {
+				addUsageTime(nowRtc, lastUid, lastTime);
+			}
 		}
 
-		return ret;
+		if(TRACE && mTraceLevel >= TRACE_LEVEL_EVENT) {
+			mTrace.add(TraceRing.FOCUS, uid, -1, 0);
+		}
 	}
 
 	/**
-	 * The focus window has changed.
+	 * Return the recently focused apps, most recent first.
 	 */
-	public void focusChanged(int uid) {
-		long nowRtc = System.currentTimeMillis();
-
-		addFocusUid(uid, nowRtc);
-		addFocusEvent(uid, nowRtc);
-		// Because we have added the data this time into the record, we have to get the second last event.
-		addUsageTime(nowRtc, mFocusEvent.get(mFocusEvent.size()-2));
+	public int[] getRecentFocusUids() {
+		synchronized (mLock) {
+			return mFocusTracker.getRecent();
+		}
+	}
 
-		String str = new String();
-		for(int i : mFocusUid) {
-			str += i + " ";
+	/**
+	 * Return up to k apps the user focuses most often, most frequent first.
+	 */
+	public int[] getTopApps(int k) {
+		synchronized (mLock) {
+			return mFocusTracker.getTop(k, System.currentTimeMillis());
 		}
+	}
 
-		Log.i(TAG, "focusChanged(). historyFocus: " + str);
-		Log.i(HOWARD_TAG, "focusChanged(). historyFocus: " + str);
+	/**
+	 * Put a restored focus back into the recent record without logging it again.
+	 */
+	private void restoreFocusLocked(int uid, long time, boolean countFrequency) {
+		mFocusTracker.touch(uid, time, countFrequency);
+		mLastFocusTime.put(uid, time);
+		if(mSnapshot != null) {
+			mSnapshot.setLastFocusTime(uid, time);
+		}
 	}
 
 	/**
@@ -451,48 +868,45 @@ class MultiResourceManagerService extends IMultiResourceManagerService.Stub
 			return ;
 		}
 
-		// If exists, remove the old one and add to the end of list.
-		if(mFocusUid.contains(uid)) {
-			mFocusUid.remove(mFocusUid.indexOf(uid));
-		}
-		mFocusUid.add(0, uid);
+		mFocusTracker.touch(uid, nowRtc, true);
 		mLastFocusTime.put(uid, nowRtc);
-
-		if(mFocusUid.size() > RECENT_LENGTH) {
-			mFocusUid.remove(mFocusUid.size()-1);
+		if(mSnapshot != null) {
+			mSnapshot.setLastFocusTime(uid, nowRtc);
+		}
+		if(mWarmState != null) {
+			mWarmState.logLocked(WarmState.RECORD_FOCUS, uid, nowRtc);
 		}
 	}
 
 	/**
 	 * Add the focus app to history record.
 	 */
-	private void addFocusEvent(int uid, long nowRtc) {
+	private boolean addFocusEvent(int uid, long nowRtc) {
 		// Only add app's uid.
 		if(uid < 10000) {
-			return ;
+			return false;
 		}
 
-		FocusEvent fa = new FocusEvent(uid, nowRtc);
-
-		mFocusEvent.add(fa);
-
-		if(EVENT_LENGTH_LIMIT){
-			while(mFocusEvent.size() > HISTORY_LENGTH){
-				mFocusEvent.remove(0);
-			}
-		}
+		EventLog history = mHistory.focus;
+		history.setInt(history.append(nowRtc), 0, uid);
+		mFocusedUid = uid;
+		mFocusedTime = nowRtc;
+		return true;
 	}
 
 	/**
 	 * Maitain the app usage data.
 	 */
-	private void addUsageTime(long time, FocusEvent fE){
+	private void addUsageTime(long time, int focusUid, long focusTime){
 		if(!mIsScreenOn)	return;
 
-		long usageTime = mAppUsage.get(fE.uid) == null? 0: mAppUsage.get(fE.uid);
-
-		usageTime += time - Math.max(fE.time, mScreenOnTime);
-		mAppUsage.put(fE.uid, usageTime);
+		final long delta = time - Math.max(focusTime, mScreenOnTime);
+		if(delta <= 0)	return;
+		mUsageTracker.addUsage(focusUid, time, delta);
+		if(mWarmState != null) {
+			mWarmState.logLocked(WarmState.RECORD_USAGE,
+					Math.min(delta, Integer.MAX_VALUE) << 32 | (focusUid & 0xFFFFFFFFL), time);
+		}
 	}
 
 	/**
@@ -507,104 +921,1576 @@ class MultiResourceManagerService extends IMultiResourceManagerService.Stub
 	 * Return the percent of app usage time.
 	 */
 	public float getAppUsage(int uid){
-		if(mAppUsage.get(uid) == null)	return 0;
-		if(mAccumulatedScreenOnTime == 0)	return 1;
-		return mAppUsage.get(uid)/mAccumulatedScreenOnTime;
+		return getAppUsageInWindow(uid, MultiResourceManager.USAGE_WINDOW_DAY);
 	}
 
 	/**
-	 * Return the network type. (1: WIFI, 2: MOBILE, 0: NULL)
+	 * Return the app's share of recent screen-on time, decayed over the given
+	 * MultiResourceManager.USAGE_WINDOW_* horizon.
 	 */
-	public int getConnectivityType(){
-		return mNetworkType;
+	public float getAppUsageInWindow(int uid, int window){
+		if(window < 0 || window >= UsageTracker.HORIZONS.length)	return 0;
+		synchronized (mLock) {
+			final long now = System.currentTimeMillis();
+			final long screenOnSince = mIsScreenOn && mScreenOnTime > 0 ? mScreenOnTime : -1;
+			final long usingSince = screenOnSince >= 0 && uid == mFocusedUid
+				? Math.max(mFocusedTime, screenOnSince) : -1;
+			return mUsageTracker.getShare(uid, window, now, screenOnSince, usingSince);
+		}
 	}
 
 	/**
-	 * Return whether the last event is perceivable or not.
+	 * Switch the policy of a domain. The choice is stored in its Settings.Global key,
+	 * so it also survives a reboot.
 	 */
-	public boolean isUserPerceivable(int uid){
-		return mAlarmManager.isUserPerceivable(uid);
-	}
-
-	private class ScreenEvent {
-		int reason;
-		long startTime;
-		long endTime;
-
-		public ScreenEvent() {
-			reason = SCREEN_ON_DEFAULT;
-			startTime = -1;
-			endTime = -1;
+	public void setPolicy(int domain, int policy) {
+		mContext.enforceCallingOrSelfPermission(android.Manifest.permission.WRITE_SECURE_SETTINGS, "setPolicy");
+		if(!MultiResourceManager.isValidPolicy(domain, policy)) {
+			throw new IllegalArgumentException("Unknown policy " + policy + " of domain " + domain);
 		}
 
-		public ScreenEvent(int r, long s, long e) {
-			reason = r;
-			startTime = s;
-			endTime = e;
+		final long ident = Binder.clearCallingIdentity();
+		try {
+			Settings.Global.putInt(mContext.getContentResolver(), MultiResourceManager.POLICY_SETTINGS[domain], policy);
+			applyPolicy(domain, policy);
+		} finally {
+			Binder.restoreCallingIdentity(ident);
 		}
+	}
 
-		public String toString() {
-			StringBuffer sb = new StringBuffer(64);
-
-			sb.append(startTime);
-			sb.append(" ");
-
-			sb.append(endTime);
-			sb.append(" ");
-
-			sb.append(reason);
-			sb.append(" ");
-
-			return sb.toString();
+	public int getPolicy(int domain) {
+		switch(domain) {
+			case MultiResourceManager.POLICY_DOMAIN_COALESCING:
+				return mCoalescingPolicy;
+			case MultiResourceManager.POLICY_DOMAIN_NOTIFICATION:
+				return mNotificationPolicy;
+			case MultiResourceManager.POLICY_DOMAIN_SCREEN:
+				return mScreenPolicy;
 		}
+		throw new IllegalArgumentException("Unknown policy domain " + domain);
 	}
 
-	private class FocusEvent {
-		int uid;
-		long time;
-
-		public FocusEvent(int u, long t) {
-			uid = u;
-			time = t;
+	private void applyPolicy(int domain, int policy) {
+		if(!MultiResourceManager.isValidPolicy(domain, policy)) {
+			Log.w(TAG, "Ignoring unknown policy " + policy + " of domain " + domain);
+			return;
 		}
 
-		public String toString() {
-			StringBuffer sb = new StringBuffer(32);
-
-			sb.append(time);
-			sb.append(" ");
-
-			sb.append(uid);
-			sb.append(" ");
-
-			return sb.toString();
-		}
+		final long nowElapsed = SystemClock.elapsedRealtime();
+		switch(domain) {
+			case MultiResourceManager.POLICY_DOMAIN_COALESCING:
+				if(policy != mCoalescingPolicy) {
+					mCoalescingPolicy = policy;
+					// The alarm manager rebatches its live alarms and keeps its own counters.
+					mAlarmManager.setCoalescingPolicy(policy);
+				}
+				break;
+			case MultiResourceManager.POLICY_DOMAIN_NOTIFICATION:
+				synchronized (mLock) {
+					if(policy != mNotificationPolicy) {
+						mNotificationStats[mNotificationPolicy].stop(nowElapsed);
+						mNotificationStats[policy].start(nowElapsed);
+						mNotificationPolicy = policy;
+					}
+				}
+				break;
+			case MultiResourceManager.POLICY_DOMAIN_SCREEN:
+				synchronized (mLock) {
+					if(policy != mScreenPolicy) {
+						mScreenStats[mScreenPolicy].stop(nowElapsed);
+						mScreenStats[policy].start(nowElapsed);
+						mScreenPolicy = policy;
+					}
+				}
+				break;
+		}
+		Log.i(TAG, "Policy of domain " + domain + ": " + MultiResourceManager.POLICY_STRING[domain][policy]);
+	}
+
+	/**
+	 * Return the network type. (1: WIFI, 2: MOBILE, 0: NULL)
+	 */
+	public int getConnectivityType(){
+		return mNetworkType;
+	}
+
+	/**
+	 * Return whether the last event is perceivable or not.
+	 */
+	public boolean isUserPerceivable(int uid){
+		// The alarm manager publishes its answer for app uids; only others need the nested call.
+		if(mSnapshot != null && MultiResourceManager.StateSnapshot.index(uid) >= 0) {
+			return mSnapshot.isUserPerceivable(uid);
+		}
+		return mAlarmManager.isUserPerceivable(uid);
+	}
+
+	/**
+	 * Return a read-only descriptor of the shared state snapshot, see
+	 * MultiResourceManager.StateSnapshot. Null if the snapshot is unavailable.
+	 */
+	public ParcelFileDescriptor getStateSnapshot() {
+		mContext.enforceCallingOrSelfPermission(android.Manifest.permission.PACKAGE_USAGE_STATS, "getStateSnapshot");
+		if(mSnapshot == null)	return null;
+		try {
+			return ParcelFileDescriptor.open(new File(MultiResourceManager.StateSnapshot.SNAPSHOT_FILE),
+					ParcelFileDescriptor.MODE_READ_ONLY);
+		} catch (FileNotFoundException e) {
+			Log.w(TAG, "State snapshot is gone.", e);
+			return null;
+		}
+	}
+
+	private final class GrantHandler extends Handler {
+		public static final int MSG_DRAIN = 1;
+
+		public GrantHandler(Looper looper) {
+			super(looper);
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			if(msg.what == MSG_DRAIN) {
+				drainGrants();
+			}
+		}
+	}
+
+	/**
+	 * Handler that keeps one windowed wakeup alarm at the earliest deadline of the work it
+	 * defers, so the alarm manager can coalesce it with other work, and calls onDeadline() on
+	 * this handler when the alarm fires. Alarm manager calls are made without holding mLock.
+	 */
+	private abstract class DeadlineScheduler extends Handler {
+		public static final int MSG_RESCHEDULE = 1;
+
+		private final PendingIntent mDeadlineIntent;
+		private final long mWindow;
+		// Guarded by mLock.
+		protected long mDeadline = Long.MAX_VALUE; // elapsed
+		// Only used on this handler.
+		private long mScheduledDeadline = Long.MAX_VALUE;
+
+		public DeadlineScheduler(Looper looper, String action, long window) {
+			super(looper);
+			mWindow = window;
+			mDeadlineIntent = PendingIntent.getBroadcast(mContext, 0, new Intent(action), 0);
+			mContext.registerReceiver(new BroadcastReceiver() {
+				@Override
+				public void onReceive(Context context, Intent intent) {
+					onDeadline();
+				}
+			}, new IntentFilter(action), null, this);
+		}
+
+		protected abstract void onDeadline();
+
+		protected void setDeadlineLocked(long deadline) {
+			if(deadline < mDeadline) {
+				mDeadline = deadline;
+				sendEmptyMessage(MSG_RESCHEDULE);
+			}
+		}
+
+		protected void clearDeadlineLocked() {
+			if(mDeadline != Long.MAX_VALUE) {
+				mDeadline = Long.MAX_VALUE;
+				sendEmptyMessage(MSG_RESCHEDULE);
+			}
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			if(msg.what == MSG_RESCHEDULE) {
+				reschedule();
+			}
+		}
+
+		protected void reschedule() {
+			final long deadline;
+			synchronized (mLock) {
+				deadline = mDeadline;
+			}
+			if(deadline == mScheduledDeadline) {
+				return;
+			}
+
+			mScheduledDeadline = deadline;
+			if(deadline == Long.MAX_VALUE) {
+				mAlarmManager.cancel(mDeadlineIntent);
+			} else {
+				mAlarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+						deadline - mWindow, mWindow, mDeadlineIntent);
+			}
+		}
+	}
+
+	/**
+	 * Defers the sound and vibration of low-priority notifications and plays everything pending
+	 * as one alert burst when the device is awake anyway: on screen-on, on a wakeup alarm batch
+	 * that uses the alert hardware or comes close to the deadline, when connectivity comes up, or
+	 * at the earliest per-notification deadline.
+	 */
+	private final class AlertScheduler extends DeadlineScheduler {
+		public static final int MSG_FLUSH = 2;
+
+		public static final int FLUSH_DEADLINE = 0;
+		public static final int FLUSH_SCREEN_ON = 1;
+		public static final int FLUSH_ALARM = 2;
+		public static final int FLUSH_CONNECTIVITY = 3;
+
+		private static final String ACTION_FLUSH = "com.android.server.MultiResourceManagerService.FLUSH_ALERTS";
+		private static final int ALERT_HARDWARE_MASK =
+				(1 << MultiResourceManager.HARDWARE_SOUND) | (1 << MultiResourceManager.HARDWARE_VIBRATION);
+
+		// Guarded by mLock.
+		private ArrayList<Notification> mPending = new ArrayList<Notification>();
+
+		public AlertScheduler(Looper looper) {
+			super(looper, ACTION_FLUSH, ALERT_FLUSH_WINDOW);
+		}
+
+		@Override
+		protected void onDeadline() {
+			flush(FLUSH_DEADLINE);
+		}
+
+		/**
+		 * Decide whether the notification alerts now; otherwise keep it pending.
+		 */
+		public boolean serveLocked(int uid, int score, Notification notification, long nowElapsed) {
+			if(!hasAlert(notification)) {
+				return true;
+			}
+
+			final long deferral = maxAlertDeferral(score);
+			if(mIsScreenOn || deferral <= 0) {
+				// This alert plays now and stands for everything pending.
+				if(TRACE && mTraceLevel >= TRACE_LEVEL_EVENT) {
+					mTrace.add(TraceRing.NOTIFICATION, uid, -1, mPending.size());
+				}
+				if(!mPending.isEmpty()) {
+					releaseLocked();
+				}
+				return true;
+			}
+
+			notification.isBuffered = true;
+			notification.bufferedUid = uid;
+			mPending.add(notification);
+			if(TRACE && mTraceLevel >= TRACE_LEVEL_EVENT) {
+				mTrace.add(TraceRing.NOTIFICATION_BUFFER, uid, -1, mPending.size());
+			}
+
+			setDeadlineLocked(nowElapsed + deferral);
+			return false;
+		}
+
+		public void requestFlush(int reason, int hardwareMask) {
+			obtainMessage(MSG_FLUSH, reason, hardwareMask).sendToTarget();
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			switch(msg.what) {
+				case MSG_FLUSH:
+					if(msg.arg1 == FLUSH_ALARM) {
+						final long nowElapsed = android.os.SystemClock.elapsedRealtime();
+						synchronized (mLock) {
+							if((msg.arg2 & ALERT_HARDWARE_MASK) == 0
+									&& nowElapsed < mDeadline - ALERT_FLUSH_WINDOW) {
+								break;
+							}
+						}
+					}
+					flush(msg.arg1);
+					break;
+				default:
+					super.handleMessage(msg);
+					break;
+			}
+		}
+
+		private ArrayList<Notification> releaseLocked() {
+			ArrayList<Notification> pending = mPending;
+			mPending = new ArrayList<Notification>();
+			clearDeadlineLocked();
+			for(Notification n : pending) {
+				n.isBuffered = false;
+			}
+			return pending;
+		}
+
+		private void flush(int reason) {
+			final ArrayList<Notification> pending;
+			synchronized (mLock) {
+				if(mPending.isEmpty()) {
+					return;
+				}
+				pending = releaseLocked();
+				mNotificationStats[MultiResourceManager.NOTIFICATION_POLICY_DEFERRED].releases++;
+			}
+
+			Notification burst = collapse(pending);
+			if(TRACE && mTraceLevel >= TRACE_LEVEL_EVENT) {
+				mTrace.add(TraceRing.ALERT_FLUSH, -1, -1, reason);
+				mTrace.add(TraceRing.NOTIFICATION_RELEASE, burst.bufferedUid, -1, pending.size());
+			}
+			mNotificationManager.notify(0, burst);
+		}
+
+		/**
+		 * One alert standing for all pending ones: the sound of the latest notification that
+		 * has a sound and the vibration of the latest one that vibrates, played once.
+		 */
+		private Notification collapse(ArrayList<Notification> pending) {
+			Notification sound = null;
+			Notification vibrate = null;
+			for(int i = pending.size() - 1; i >= 0 && (sound == null || vibrate == null); i--) {
+				Notification n = pending.get(i);
+				if(sound == null && ((n.defaults & Notification.DEFAULT_SOUND) != 0 || n.sound != null)) {
+					sound = n;
+				}
+				if(vibrate == null && ((n.defaults & Notification.DEFAULT_VIBRATE) != 0 || n.vibrate != null)) {
+					vibrate = n;
+				}
+			}
+
+			Notification burst = pending.get(pending.size() - 1).clone();
+			burst.defaults &= ~(Notification.DEFAULT_SOUND | Notification.DEFAULT_VIBRATE);
+			burst.sound = null;
+			burst.vibrate = null;
+			burst.flags &= ~(Notification.FLAG_INSISTENT | Notification.FLAG_ONLY_ALERT_ONCE);
+			if(sound != null) {
+				burst.defaults |= sound.defaults & Notification.DEFAULT_SOUND;
+				burst.sound = sound.sound;
+				burst.audioStreamType = sound.audioStreamType;
+			}
+			if(vibrate != null) {
+				burst.defaults |= vibrate.defaults & Notification.DEFAULT_VIBRATE;
+				burst.vibrate = vibrate.vibrate;
+			}
+			burst.isBuffered = true;
+			return burst;
+		}
+	}
+
+	/**
+	 * Coalesces screen wakes requested by apps the user would not notice right away.
+	 * Perceivable and system requesters wake the screen at once, and that wake also serves
+	 * everything pending. Others wait until their own deadline; the earliest one triggers a
+	 * single real wakeUp for the whole group, and the screen turning on for any other reason
+	 * serves the group as well.
+	 */
+	private final class ScreenWakeScheduler extends DeadlineScheduler {
+		private static final String ACTION_WAKE = "com.android.server.MultiResourceManagerService.WAKE_SCREEN";
+
+		// Deferred requesters and their own deadlines. Guarded by mLock.
+		private SparseLongArray mPending = new SparseLongArray();
+		private PowerManager mPowerManager;
+
+		public ScreenWakeScheduler(Looper looper) {
+			super(looper, ACTION_WAKE, SCREEN_WAKE_WINDOW);
+		}
+
+		/**
+		 * Decide whether the requester wakes the screen now; otherwise keep it pending.
+		 */
+		public boolean serveLocked(int uid, boolean perceivable, long nowElapsed) {
+			if(mIsScreenOn || perceivable) {
+				if(mPending.size() > 0) {
+					releaseLocked(uid);
+				}
+				return true;
+			}
+
+			// Keep the earliest deadline of a requester that asks repeatedly.
+			final long deadline = nowElapsed + SCREEN_WAKE_MAX_DEFERRAL;
+			if(mPending.indexOfKey(uid) < 0) {
+				mPending.put(uid, deadline);
+			}
+			setDeadlineLocked(deadline);
+
+			if(TRACE && mTraceLevel >= TRACE_LEVEL_EVENT) {
+				mTrace.add(TraceRing.SCREEN, uid, -1, mPending.size());
+			}
+			return false;
+		}
+
+		/**
+		 * The screen turned on; every pending requester is served.
+		 */
+		public void screenOnLocked() {
+			if(mPending.size() > 0) {
+				releaseLocked(-1);
+			}
+		}
+
+		private SparseLongArray releaseLocked(int servedBy) {
+			final SparseLongArray pending = mPending;
+			mPending = new SparseLongArray();
+			clearDeadlineLocked();
+
+			if(TRACE && mTraceLevel >= TRACE_LEVEL_EVENT) {
+				for(int i = 0; i < pending.size(); i++) {
+					mTrace.add(TraceRing.SCREEN_RELEASE, pending.keyAt(i), -1, servedBy);
+				}
+			}
+			return pending;
+		}
+
+		@Override
+		protected void onDeadline() {
+			final SparseLongArray group;
+			synchronized (mLock) {
+				if(mPending.size() == 0 || mIsScreenOn) {
+					return;
+				}
+				group = releaseLocked(-1);
+				mScreenOnReason = SCREEN_ON_COALESCED;
+				mScreenStats[MultiResourceManager.SCREEN_POLICY_COALESCED].releases++;
+			}
+
+			for(int i = 0; i < group.size(); i++) {
+				grant(group.keyAt(i), MultiResourceManager.HARDWARE_SCREEN);
+			}
+			if(mPowerManager == null) {
+				mPowerManager = (PowerManager)mContext.getSystemService(Context.POWER_SERVICE);
+			}
+			mPowerManager.wakeUp(SystemClock.uptimeMillis());
+		}
+	}
+
+	/**
+	 * Applies the policies stored in the POLICY_SETTINGS keys, at start and whenever one
+	 * of them changes, e.g. through "settings put global" or setPolicy().
+	 */
+	private final class PolicyRegistry extends ContentObserver {
+		public PolicyRegistry(Handler handler) {
+			super(handler);
+			final ContentResolver resolver = mContext.getContentResolver();
+			for(int domain = 0; domain < MultiResourceManager.NUM_POLICY_DOMAINS; domain++) {
+				resolver.registerContentObserver(
+						Settings.Global.getUriFor(MultiResourceManager.POLICY_SETTINGS[domain]), false, this);
+			}
+		}
+
+		@Override
+		public void onChange(boolean selfChange) {
+			update();
+		}
+
+		public void update() {
+			final ContentResolver resolver = mContext.getContentResolver();
+			for(int domain = 0; domain < MultiResourceManager.NUM_POLICY_DOMAINS; domain++) {
+				applyPolicy(domain, Settings.Global.getInt(resolver, MultiResourceManager.POLICY_SETTINGS[domain], 0));
+			}
+		}
+	}
+
+	/**
+	 * Counters of one notification or screen policy, for comparing policies on the same device.
+	 */
+	private static final class PolicyStats {
+		long activeTime;
+		long activeSince = -1;
+		long requests;
+		long served;
+		long releases;
+
+		static PolicyStats[] create(int domain) {
+			PolicyStats[] stats = new PolicyStats[MultiResourceManager.POLICY_STRING[domain].length];
+			for(int i = 0; i < stats.length; i++) {
+				stats[i] = new PolicyStats();
+			}
+			return stats;
+		}
+
+		void start(long nowElapsed) {
+			activeSince = nowElapsed;
+		}
+
+		void stop(long nowElapsed) {
+			if(activeSince >= 0) {
+				activeTime += nowElapsed - activeSince;
+				activeSince = -1;
+			}
+		}
+
+		void noteRequest(boolean serve) {
+			requests++;
+			if(serve) {
+				served++;
+			}
+		}
+
+		static void dump(PrintWriter pw, String label, int domain, PolicyStats[] stats, long nowElapsed) {
+			for(int i = 0; i < stats.length; i++) {
+				final PolicyStats s = stats[i];
+				pw.print("  ");
+				pw.print(label);
+				pw.print("/");
+				pw.print(MultiResourceManager.POLICY_STRING[domain][i]);
+				pw.print(": active=");
+				pw.print((s.activeTime + (s.activeSince >= 0 ? nowElapsed - s.activeSince : 0)) / 1000);
+				pw.print("s requests=");
+				pw.print(s.requests);
+				pw.print(" served=");
+				pw.print(s.served);
+				pw.print(" deferred=");
+				pw.print(s.requests - s.served);
+				pw.print(" releases=");
+				pw.println(s.releases);
+			}
+		}
+	}
+
+	/**
+	 * Multi-producer single-consumer ring of (uid, time) grant records.
+	 * Producers claim a sequence number with one atomic increment and never wait for
+	 * the consumer. When the consumer falls a full ring behind, the oldest records are
+	 * overwritten and counted in dropped.
+	 *
+	 * Each slot is a seqlock: a producer claims it by swapping the mark to -(seq + 1)
+	 * before writing the record and sets seq + 1 after, and the consumer takes a record
+	 * only if the mark reads seq + 1 both before and after it. The record fields are
+	 * volatile so the consumer's reads are ordered between the two mark reads. A producer
+	 * a full ring late waits for a slot still being written, and drops its record if a
+	 * newer one is already there.
+	 */
+	private static final class GrantRing {
+		private final int mMask;
+		private final AtomicIntegerArray mUids;
+		private final AtomicLongArray mTimes;
+		// Sequence number + 1 of the record in each slot, negated while it is being written.
+		private final AtomicLongArray mPublished;
+		private final AtomicLong mTail = new AtomicLong(0);
+		private long mHead = 0;
+
+		// Consumer side only.
+		int polledUid;
+		long polledTime;
+		long dropped;
+
+		public GrantRing(int capacity) {
+			mMask = capacity - 1;
+			mUids = new AtomicIntegerArray(capacity);
+			mTimes = new AtomicLongArray(capacity);
+			mPublished = new AtomicLongArray(capacity);
+		}
+
+		public void publish(int uid, long time) {
+			final long seq = mTail.getAndIncrement();
+			final int slot = (int)(seq & mMask);
+			while(true) {
+				final long current = mPublished.get(slot);
+				if(current > seq + 1) {
+					return;
+				}
+				if(current >= 0 && mPublished.compareAndSet(slot, current, -(seq + 1))) {
+					break;
+				}
+				Thread.yield();
+			}
+			mUids.set(slot, uid);
+			mTimes.set(slot, time);
+			mPublished.set(slot, seq + 1);
+		}
+
+		/**
+		 * Read the next record into polledUid/polledTime. Return false if none is ready.
+		 */
+		public boolean poll() {
+			while(true) {
+				final int slot = (int)(mHead & mMask);
+				final long published = mPublished.get(slot);
+				final long seq = (published < 0 ? -published : published) - 1;
+				if(seq < mHead || (seq == mHead && published < 0)) {
+					// Not published yet, or still being written.
+					return false;
+				}
+				if(seq == mHead) {
+					polledUid = mUids.get(slot);
+					polledTime = mTimes.get(slot);
+					if(mPublished.get(slot) == published) {
+						mHead++;
+						return true;
+					}
+				}
+				// Overwritten by a producer a full ring ahead; skip to the oldest live record.
+				final long tail = mTail.get();
+				final long oldest = tail - mMask - 1;
+				if(oldest > mHead) {
+					dropped += oldest - mHead;
+					mHead = oldest;
+				} else {
+					mHead++;
+					dropped++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bounded ring of grant timestamps in ascending order.
+	 * The oldest timestamp is dropped once the ring is full.
+	 */
+	private static final class GrantTimeline {
+		private final long[] mTimes;
+		private int mHead = 0;
+		private int mSize = 0;
+
+		public GrantTimeline(int capacity) {
+			mTimes = new long[capacity];
+		}
+
+		private long at(int i) {
+			return mTimes[(mHead + i) % mTimes.length];
+		}
+
+		public long last() {
+			return mSize == 0 ? 0 : at(mSize - 1);
+		}
+
+		public void add(long time) {
+			if(mSize == mTimes.length) {
+				if(time < at(0)) {
+					// Older than everything we keep.
+					return;
+				}
+				mHead = (mHead + 1) % mTimes.length;
+				mSize--;
+			}
+
+			// Batched reports may arrive slightly out of order; keep the ring sorted.
+			int i = mSize;
+			while(i > 0 && at(i - 1) > time) {
+				mTimes[(mHead + i) % mTimes.length] = at(i - 1);
+				i--;
+			}
+			mTimes[(mHead + i) % mTimes.length] = time;
+			mSize++;
+		}
+
+		/**
+		 * Whether any grant falls in [from, to].
+		 */
+		public boolean hasGrantIn(long from, long to) {
+			// Find the first timestamp >= from.
+			int lo = 0, hi = mSize;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(at(mid) < from) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo < mSize && at(lo) <= to;
+		}
+	}
+
+	/**
+	 * Recency and frequency of focused apps. The recent list is an intrusive doubly-linked
+	 * LRU over primitive arrays indexed by app id, capped at a configurable length; the
+	 * frequency is a decayed focus count. Updates are O(1); top-k only scans apps seen so far.
+	 */
+	private static final class FocusTracker {
+		private static final long FREQUENCY_HORIZON = 24 * 60 * 60 * 1000L;
+		private static final int NONE = -1;
+
+		private final int mCapacity;
+		private int[] mUid = new int[64];
+		private int[] mPrev = new int[64];
+		private int[] mNext = new int[64];
+		private boolean[] mInList = new boolean[64];
+		private double[] mFrequency = new double[64];
+		private long[] mFrequencyTime = new long[64];
+		private boolean[] mSeen = new boolean[64];
+		private int[] mSeenIndex = new int[64];
+		private int mSeenCount = 0;
+		private int mHead = NONE, mTail = NONE, mSize = 0;
+
+		FocusTracker(int capacity) {
+			mCapacity = capacity;
+		}
+
+		private static int index(int uid) {
+			return UserHandle.getAppId(uid) - Process.FIRST_APPLICATION_UID;
+		}
+
+		private void ensure(int i) {
+			if(i < mUid.length)	return;
+			final int length = Math.max(i + 1, mUid.length * 2);
+			mUid = Arrays.copyOf(mUid, length);
+			mPrev = Arrays.copyOf(mPrev, length);
+			mNext = Arrays.copyOf(mNext, length);
+			mInList = Arrays.copyOf(mInList, length);
+			mFrequency = Arrays.copyOf(mFrequency, length);
+			mFrequencyTime = Arrays.copyOf(mFrequencyTime, length);
+			mSeen = Arrays.copyOf(mSeen, length);
+		}
+
+		private void unlink(int i) {
+			if(mPrev[i] != NONE) mNext[mPrev[i]] = mNext[i]; else mHead = mNext[i];
+			if(mNext[i] != NONE) mPrev[mNext[i]] = mPrev[i]; else mTail = mPrev[i];
+			mInList[i] = false;
+			mSize--;
+		}
+
+		private void pushFront(int i) {
+			mPrev[i] = NONE;
+			mNext[i] = mHead;
+			if(mHead != NONE) mPrev[mHead] = i; else mTail = i;
+			mHead = i;
+			mInList[i] = true;
+			mSize++;
+		}
+
+		private double frequencyAt(int i, long now) {
+			final long dt = now - mFrequencyTime[i];
+			return dt <= 0 ? mFrequency[i] : mFrequency[i] * Math.exp(-(double)dt / FREQUENCY_HORIZON);
+		}
+
+		/**
+		 * Move the app to the front of the recent list and optionally count one focus.
+		 */
+		void touch(int uid, long now, boolean countFrequency) {
+			final int i = index(uid);
+			if(i < 0)	return;
+			ensure(i);
+
+			mUid[i] = uid;
+			if(!mSeen[i]) {
+				mSeen[i] = true;
+				if(mSeenCount == mSeenIndex.length) {
+					mSeenIndex = Arrays.copyOf(mSeenIndex, mSeenCount * 2);
+				}
+				mSeenIndex[mSeenCount++] = i;
+			}
+
+			if(mInList[i]) {
+				unlink(i);
+			}
+			pushFront(i);
+			if(mSize > mCapacity) {
+				unlink(mTail);
+			}
+
+			if(countFrequency) {
+				mFrequency[i] = frequencyAt(i, now) + 1;
+				mFrequencyTime[i] = now;
+			}
+		}
+
+		int[] getRecent() {
+			int[] ret = new int[mSize];
+			int n = 0;
+			for(int i = mHead; i != NONE; i = mNext[i]) {
+				ret[n++] = mUid[i];
+			}
+			return ret;
+		}
+
+		int[] getTop(int k, long now) {
+			k = Math.min(k, mSeenCount);
+			if(k <= 0)	return new int[0];
+			final int[] top = new int[k];
+			final double[] score = new double[k];
+			int n = 0;
+
+			// Insertion into a bounded sorted array: O(seen * k) with no boxing.
+			for(int s = 0; s < mSeenCount; s++) {
+				final int i = mSeenIndex[s];
+				final double f = frequencyAt(i, now);
+				if(f <= 0 || (n == k && f <= score[k - 1]))	continue;
+
+				int pos = n < k ? n++ : k - 1;
+				while(pos > 0 && score[pos - 1] < f) {
+					score[pos] = score[pos - 1];
+					top[pos] = top[pos - 1];
+					pos--;
+				}
+				score[pos] = f;
+				top[pos] = mUid[i];
+			}
+			return n == k ? top : Arrays.copyOf(top, n);
+		}
+	}
+
+	/**
+	 * Fixed-size binary trace of the hot-path decisions, kept as parallel primitive arrays.
+	 * Writers claim a slot with one atomic increment and fill it without locking, so a
+	 * concurrent dump may show a slot that is being overwritten; that is acceptable for a trace.
+	 *
+	 * Binary export: int MAGIC, int count, then count records of
+	 * long time, int event, int uid, int hardware, long value, oldest first.
+	 */
+	static final class TraceRing {
+		static final int MAGIC = 0x4D525431; // "MRT1"
+
+		static final int IS_GRANT = 1;			// value: 1 if granted
+		static final int GRANT = 2;
+		static final int GRANT_DROPPED = 3;		// value: dropped count
+		static final int NOTIFICATION = 4;		// value: buffered count
+		static final int NOTIFICATION_BUFFER = 5;	// value: buffered count
+		static final int NOTIFICATION_RELEASE = 6;	// value: collapsed count
+		static final int SCREEN = 7;			// value: pending count
+		static final int SCREEN_RELEASE = 8;		// value: uid whose wake served it, -1 for screen-on
+		static final int FOCUS = 9;
+		static final int NETWORK = 10;			// value: network type
+		static final int ALERT_FLUSH = 11;		// value: flush reason
+
+		private static final String[] EVENT_STRING = {
+			"?", "IS_GRANT", "GRANT", "GRANT_DROPPED", "NOTIFICATION", "NOTIFICATION_BUFFER",
+			"NOTIFICATION_RELEASE", "SCREEN", "SCREEN_RELEASE", "FOCUS", "NETWORK", "ALERT_FLUSH"
+		};
+
+		private final int mMask;
+		private final AtomicLong mNext = new AtomicLong(0);
+		private final long[] mTime;
+		private final int[] mEvent;
+		private final int[] mUid;
+		private final int[] mHardware;
+		private final long[] mValue;
+
+		TraceRing(int capacity) {
+			mMask = capacity - 1;
+			mTime = new long[capacity];
+			mEvent = new int[capacity];
+			mUid = new int[capacity];
+			mHardware = new int[capacity];
+			mValue = new long[capacity];
+		}
+
+		void add(int event, int uid, int hardware, long value) {
+			final int i = (int)mNext.getAndIncrement() & mMask;
+			mTime[i] = System.currentTimeMillis();
+			mEvent[i] = event;
+			mUid[i] = uid;
+			mHardware[i] = hardware;
+			mValue[i] = value;
+		}
+
+		private long first(long next) {
+			return Math.max(0, next - mTime.length);
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			final long next = mNext.get();
+			final long first = first(next);
+			out.writeInt(MAGIC);
+			out.writeInt((int)(next - first));
+			for(long seq = first; seq < next; seq++) {
+				final int i = (int)seq & mMask;
+				out.writeLong(mTime[i]);
+				out.writeInt(mEvent[i]);
+				out.writeInt(mUid[i]);
+				out.writeInt(mHardware[i]);
+				out.writeLong(mValue[i]);
+			}
+		}
+
+		void dump(PrintWriter pw) {
+			final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+			final Date date = new Date();
+			final long next = mNext.get();
+			for(long seq = first(next); seq < next; seq++) {
+				final int i = (int)seq & mMask;
+				final int event = mEvent[i];
+				date.setTime(mTime[i]);
+				pw.print("  ");
+				pw.print(sdf.format(date));
+				pw.print(" ");
+				pw.print(event > 0 && event < EVENT_STRING.length ? EVENT_STRING[event] : EVENT_STRING[0]);
+				if(mUid[i] != -1) {
+					pw.print(" uid=");
+					pw.print(mUid[i]);
+				}
+				if(mHardware[i] >= 0) {
+					pw.print(" hardware=");
+					pw.print(MultiResourceManager.HardwareRegistry.getName(mHardware[i]));
+				}
+				pw.print(" value=");
+				pw.println(mValue[i]);
+			}
+		}
+	}
+
+	/**
+	 * App usage and screen-on time as exponentially decayed sums over several horizons.
+	 * Values are stored in primitive arrays indexed by app id and decayed lazily, so each
+	 * update and each query is O(1).
+	 */
+	private static final class UsageTracker {
+		static final long[] HORIZONS = {
+			60 * 60 * 1000L,           // USAGE_WINDOW_HOUR
+			24 * 60 * 60 * 1000L,      // USAGE_WINDOW_DAY
+			7 * 24 * 60 * 60 * 1000L   // USAGE_WINDOW_WEEK
+		};
+
+		private double[][] mUsage = new double[HORIZONS.length][64];
+		private long[] mUsageTime = new long[64];
+		private final double[] mScreen = new double[HORIZONS.length];
+		private long mScreenTime = 0;
+
+		private static int index(int uid) {
+			return UserHandle.getAppId(uid) - Process.FIRST_APPLICATION_UID;
+		}
+
+		private static double decay(long dt, int horizon) {
+			return dt <= 0 ? 1 : Math.exp(-(double)dt / HORIZONS[horizon]);
+		}
+
+		private void ensureCapacity(int i) {
+			if(i >= mUsageTime.length) {
+				final int length = Math.max(i + 1, mUsageTime.length * 2);
+				mUsageTime = Arrays.copyOf(mUsageTime, length);
+				for(int h = 0; h < HORIZONS.length; h++) {
+					mUsage[h] = Arrays.copyOf(mUsage[h], length);
+				}
+			}
+		}
+
+		void addUsage(int uid, long now, long duration) {
+			final int i = index(uid);
+			if(i < 0 || duration <= 0)	return;
+
+			ensureCapacity(i);
+			final long dt = now - mUsageTime[i];
+			for(int h = 0; h < HORIZONS.length; h++) {
+				mUsage[h][i] = mUsage[h][i] * decay(dt, h) + duration;
+			}
+			mUsageTime[i] = now;
+		}
+
+		void addScreenOn(long now, long duration) {
+			if(duration <= 0)	return;
+
+			final long dt = now - mScreenTime;
+			for(int h = 0; h < HORIZONS.length; h++) {
+				mScreen[h] = mScreen[h] * decay(dt, h) + duration;
+			}
+			mScreenTime = now;
+		}
+
+		/**
+		 * Both sums only grow when a session ends, so the one in progress is added here.
+		 * @param screenOnSince start of the screen-on session in progress, or -1 if the screen is off.
+		 * @param usingSince when uid got the focus within that session, or -1 if it has not.
+		 */
+		float getShare(int uid, int horizon, long now, long screenOnSince, long usingSince) {
+			final int i = index(uid);
+			if(i < 0)	return 0;
+
+			double usage = usingSince >= 0 ? now - usingSince : 0;
+			if(i < mUsageTime.length && mUsageTime[i] != 0) {
+				usage += mUsage[horizon][i] * decay(now - mUsageTime[i], horizon);
+			}
+			if(usage <= 0)	return 0;
+
+			double screen = mScreen[horizon] * decay(now - mScreenTime, horizon);
+			if(screenOnSince >= 0)	screen += now - screenOnSince;
+			if(screen <= 0)	return 1;
+			return (float)Math.min(1, usage / screen);
+		}
+
+		/**
+		 * Write the screen sums and at most max apps, the most recently used first with ties
+		 * broken by app index, so the same state always encodes to the same entries.
+		 */
+		void encode(ByteBuffer out, int max) {
+			out.putLong(mScreenTime);
+			for(int h = 0; h < HORIZONS.length; h++) {
+				out.putDouble(mScreen[h]);
+			}
+
+			int used = 0;
+			for(int i = 0; i < mUsageTime.length; i++) {
+				if(mUsageTime[i] != 0)	used++;
+			}
+			long threshold = Long.MIN_VALUE;
+			if(used > max) {
+				final long[] times = new long[used];
+				int n = 0;
+				for(int i = 0; i < mUsageTime.length; i++) {
+					if(mUsageTime[i] != 0)	times[n++] = mUsageTime[i];
+				}
+				Arrays.sort(times);
+				threshold = times[used - max];
+			}
+			int count = Math.min(used, max);
+			out.putInt(count);
+			for(int pass = 0; pass < 2 && count > 0; pass++) {
+				for(int i = 0; i < mUsageTime.length && count > 0; i++) {
+					final long time = mUsageTime[i];
+					if(time != 0 && (pass == 0 ? time > threshold : time == threshold)) {
+						out.putInt(i);
+						out.putLong(time);
+						for(int h = 0; h < HORIZONS.length; h++) {
+							out.putDouble(mUsage[h][i]);
+						}
+						count--;
+					}
+				}
+			}
+		}
+
+		void decode(ByteBuffer in) {
+			mScreenTime = in.getLong();
+			for(int h = 0; h < HORIZONS.length; h++) {
+				mScreen[h] = in.getDouble();
+			}
+
+			final int count = in.getInt();
+			for(int n = 0; n < count; n++) {
+				final int i = in.getInt();
+				ensureCapacity(i);
+				mUsageTime[i] = in.getLong();
+				for(int h = 0; h < HORIZONS.length; h++) {
+					mUsage[h][i] = in.getDouble();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Memory-mapped warm state: two checkpoint slots and two write-ahead tails.
+	 *
+	 * A checkpoint snapshots the state under mLock and switches logging to the other tail,
+	 * reset to the next generation; the slot write and msync then run on the log thread
+	 * without the lock. The slot is written over the older one and only becomes valid once
+	 * complete, so a crash at any point leaves a valid slot, its tail, and possibly the tail
+	 * of a checkpoint that never landed, which restore replays as well. Tail records are fixed
+	 * size and checksummed together with the generation, so replay stops at the first torn or
+	 * stale record. Restore work is bounded by the slot and tail sizes.
+	 */
+	private static final class WarmState {
+		static final int RECORD_FOCUS = 1;   // a: uid, b: focus time
+		static final int RECORD_USAGE = 2;   // a: usage delta << 32 | uid, b: time
+		static final int RECORD_SCREEN = 3;  // a: screen-on delta, b: time
+		static final int RECORD_GRANT = 4;   // a: grantKey(), b: grant time
+
+		static final long CHECKPOINT_INTERVAL = 30 * 60 * 1000; // ms
+
+		private static final String STATE_FILE = "/data/system/multiResource.state";
+		private static final int MAGIC = 0x4D525732; // "MRW2"
+		private static final int SLOT_SIZE = 128 * 1024;
+		private static final int SLOT_HEADER = 20; // magic, generation, length, crc
+		private static final int RECORD_SIZE = 24; // type, a, b, crc
+		private static final int TAIL_HEADER = 12; // magic, generation
+		private static final int TAIL_RECORDS = 2048;
+		private static final int TAIL_SIZE = TAIL_HEADER + TAIL_RECORDS * RECORD_SIZE;
+		private static final int TAIL_OFFSET = 2 * SLOT_SIZE;
+		private static final int FILE_SIZE = TAIL_OFFSET + 2 * TAIL_SIZE;
+
+		// Per-section entry budgets; together they fit a slot, so no section crowds out another.
+		private static final int MAX_USAGE = 1536;   // 36 bytes each, latest use kept
+		private static final int MAX_FOCUS = 2048;   // 12 bytes each, latest focus kept
+		private static final int MAX_GRANTS = 3072;  // 16 bytes each, latest grant kept
+
+		private static final Comparator<Map.Entry<Integer, Long>> sLargestFirst =
+				new Comparator<Map.Entry<Integer, Long>>() {
+			@Override
+			public int compare(Map.Entry<Integer, Long> a, Map.Entry<Integer, Long> b) {
+				int c = b.getValue().compareTo(a.getValue());
+				return c != 0 ? c : a.getKey().compareTo(b.getKey());
+			}
+		};
+
+		private final MultiResourceManagerService mService;
+		private final MappedByteBuffer mBuf;
+		private final CRC32 mCrc = new CRC32();
+		private final byte[] mScratch = new byte[SLOT_SIZE];
+		private long mGeneration;       // newest generation handed out, durable or not
+		private int mTail;              // tail the event path appends to
+		private long mTailGeneration;
+		private int mTailCount;
+		private boolean mCheckpointPending;
+		private int mSlot = -1;         // slot of the newest durable checkpoint; log thread only
+
+		// Cost accounting for dump().
+		private long mRecords, mRecordNanos, mDropped, mCheckpoints, mCheckpointNanos, mRestoreNanos;
+
+		private WarmState(MultiResourceManagerService service, MappedByteBuffer buf) {
+			mService = service;
+			mBuf = buf;
+		}
+
+		/**
+		 * Map the state file and restore the service state from it. Return null if the file is unusable.
+		 */
+		static WarmState open(MultiResourceManagerService service) {
+			RandomAccessFile file = null;
+			try {
+				file = new RandomAccessFile(STATE_FILE, "rw");
+				file.setLength(FILE_SIZE);
+				MappedByteBuffer buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+				WarmState state = new WarmState(service, buf);
+				synchronized (service.mLock) {
+					state.restoreLocked();
+				}
+				return state;
+			} catch (IOException e) {
+				Log.e(TAG, "Failure opening warm state.", e);
+				return null;
+			} finally {
+				if(file != null) {
+					try {
+						file.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+
+		private void restoreLocked() {
+			final long start = System.nanoTime();
+
+			int slot = -1;
+			long generation = 0;
+			for(int i = 0; i < 2; i++) {
+				final int base = i * SLOT_SIZE;
+				if(mBuf.getInt(base) != MAGIC) continue;
+				final long g = mBuf.getLong(base + 4);
+				final int length = mBuf.getInt(base + 12);
+				if(length < 0 || length > SLOT_SIZE - SLOT_HEADER) continue;
+				mBuf.position(base + SLOT_HEADER);
+				mBuf.get(mScratch, 0, length);
+				mCrc.reset();
+				mCrc.update(mScratch, 0, length);
+				if((int)mCrc.getValue() != mBuf.getInt(base + 16)) continue;
+				if(slot == -1 || g > generation) {
+					slot = i;
+					generation = g;
+				}
+			}
+
+			mSlot = slot;
+			if(slot != -1) {
+				final int base = slot * SLOT_SIZE;
+				mBuf.position(base + SLOT_HEADER);
+				mBuf.get(mScratch, 0, mBuf.getInt(base + 12));
+				decodeLocked(ByteBuffer.wrap(mScratch));
+			}
+
+			// Records logged after the chosen checkpoint, or before the first one. Logging
+			// resumes on this tail.
+			int replayed = 0;
+			mTail = -1;
+			mGeneration = generation;
+			for(int t = 0; t < 2; t++) {
+				if(tailGeneration(t) == generation) {
+					mTail = t;
+					mTailGeneration = generation;
+					mTailCount = replayTailLocked(t, generation);
+					replayed += mTailCount;
+				}
+			}
+
+			// Records logged while a newer checkpoint was being written that never landed.
+			// Its generation is never handed out again, so its records cannot come back stale.
+			for(int t = 0; t < 2; t++) {
+				final long g = tailGeneration(t);
+				if(t != mTail && g > generation) {
+					replayed += replayTailLocked(t, g);
+					mGeneration = g;
+				}
+			}
+
+			if(mTail == -1) {
+				resetTail(tailGeneration(0) > generation ? 1 : 0, generation);
+			}
+
+			mRestoreNanos = System.nanoTime() - start;
+			Log.i(TAG, "WarmState restored. generation: " + generation + " records: " + replayed
+					+ " us: " + mRestoreNanos / 1000);
+		}
+
+		private static int tailOffset(int tail) {
+			return TAIL_OFFSET + tail * TAIL_SIZE;
+		}
+
+		private long tailGeneration(int tail) {
+			final int base = tailOffset(tail);
+			return mBuf.getInt(base) == MAGIC ? mBuf.getLong(base + 4) : -1;
+		}
+
+		private int replayTailLocked(int tail, long generation) {
+			int replayed = 0;
+			while(replayed < TAIL_RECORDS && replayRecordLocked(tail, replayed, generation)) {
+				replayed++;
+			}
+			return replayed;
+		}
+
+		private boolean replayRecordLocked(int tail, int index, long generation) {
+			final int offset = tailOffset(tail) + TAIL_HEADER + index * RECORD_SIZE;
+			final int type = mBuf.getInt(offset);
+			final long a = mBuf.getLong(offset + 4);
+			final long b = mBuf.getLong(offset + 12);
+			if(type == 0 || mBuf.getInt(offset + 20) != checksum(type, a, b, generation)) {
+				return false;
+			}
+			applyLocked(type, a, b);
+			return true;
+		}
+
+		private void applyLocked(int type, long a, long b) {
+			final MultiResourceManagerService s = mService;
+			switch(type) {
+				case RECORD_FOCUS:
+					s.restoreFocusLocked((int)a, b, true);
+					break;
+				case RECORD_USAGE:
+					s.mUsageTracker.addUsage((int)a, b, a >>> 32);
+					break;
+				case RECORD_SCREEN:
+					s.mUsageTracker.addScreenOn(b, a);
+					break;
+				case RECORD_GRANT: {
+					GrantTimeline timeline = s.mGrantTimeline.get(a);
+					if(timeline == null) {
+						timeline = new GrantTimeline(GRANT_TIMELINE_LENGTH);
+						s.mGrantTimeline.put(a, timeline);
+					}
+					timeline.add(b);
+					break;
+				}
+			}
+		}
+
+		private int checksum(int type, long a, long b, long generation) {
+			long h = generation * 0x9E3779B97F4A7C15L;
+			h = (h ^ type) * 0xC2B2AE3D27D4EB4FL;
+			h = (h ^ a) * 0x165667B19E3779F9L;
+			h = (h ^ b) * 0x9E3779B97F4A7C15L;
+			return (int)(h ^ (h >>> 32)) | 1;
+		}
+
+		private void resetTail(int tail, long generation) {
+			final int base = tailOffset(tail);
+			mBuf.putInt(base + TAIL_HEADER, 0);
+			mBuf.putLong(base + 4, generation);
+			mBuf.putInt(base, MAGIC);
+			mTail = tail;
+			mTailGeneration = generation;
+			mTailCount = 0;
+		}
+
+		/**
+		 * Append a state change to the tail. Called with mLock held on the event path.
+		 */
+		void logLocked(int type, long a, long b) {
+			final long start = System.nanoTime();
+
+			if(mTailCount == TAIL_RECORDS) {
+				// The log thread fell behind; a checkpoint is already pending. Dropping the
+				// record keeps msync off the event path.
+				mDropped++;
+				return;
+			}
+			final int offset = tailOffset(mTail) + TAIL_HEADER + mTailCount * RECORD_SIZE;
+			mBuf.putLong(offset + 4, a);
+			mBuf.putLong(offset + 12, b);
+			mBuf.putInt(offset + 20, checksum(type, a, b, mTailGeneration));
+			mBuf.putInt(offset, type);
+			mTailCount++;
+
+			if(mTailCount >= TAIL_RECORDS * 3 / 4 && !mCheckpointPending) {
+				mCheckpointPending = true;
+				mService.mLogWriter.scheduleCheckpoint(0);
+			}
+
+			mRecords++;
+			mRecordNanos += System.nanoTime() - start;
+		}
+
+		/**
+		 * Write a checkpoint. Called on the log thread; only the snapshot is taken under mLock.
+		 */
+		void checkpoint() {
+			final long start = System.nanoTime();
+			final long generation;
+			final int length;
+
+			synchronized (mService.mLock) {
+				mCheckpointPending = false;
+				if(mTailCount == 0) return;
+
+				ByteBuffer payload = ByteBuffer.wrap(mScratch, 0, SLOT_SIZE - SLOT_HEADER);
+				encodeLocked(payload);
+				length = payload.position();
+
+				// Later records go to the other tail; the current one stays valid for the
+				// old slot until the new one is durable.
+				generation = ++mGeneration;
+				resetTail(1 - mTail, generation);
+			}
+
+			mCrc.reset();
+			mCrc.update(mScratch, 0, length);
+
+			// Overwrite the older slot, invalidating it first so a torn write is never taken
+			// for a checkpoint. The event path writes only the tails, so a duplicate suffices
+			// to keep the slot write off mBuf's shared position.
+			final int slot = mSlot == 0 ? 1 : 0;
+			final int base = slot * SLOT_SIZE;
+			ByteBuffer buf = mBuf.duplicate();
+			buf.putInt(base, 0);
+			buf.position(base + SLOT_HEADER);
+			buf.put(mScratch, 0, length);
+			buf.putLong(base + 4, generation);
+			buf.putInt(base + 12, length);
+			buf.putInt(base + 16, (int)mCrc.getValue());
+			buf.putInt(base, MAGIC);
+			mBuf.force();
+			mSlot = slot;
+
+			mCheckpoints++;
+			mCheckpointNanos += System.nanoTime() - start;
+		}
+
+		private void encodeLocked(ByteBuffer out) {
+			final MultiResourceManagerService s = mService;
+
+			s.mUsageTracker.encode(out, MAX_USAGE);
+
+			// Recent focus list, oldest first so restore can replay it in order.
+			final int[] recent = s.mFocusTracker.getRecent();
+			out.putInt(recent.length);
+			for(int i = recent.length - 1; i >= 0; i--) {
+				int uid = recent[i];
+				Long time = s.mLastFocusTime.get(uid);
+				out.putInt(uid);
+				out.putLong(time == null ? 0 : time);
+			}
+
+			putLargest(out, s.mLastFocusTime, MAX_FOCUS);
+
+			// Latest grants first, ties broken by key; the array iterates in key order.
+			final LongSparseArray<GrantTimeline> timelines = s.mGrantTimeline;
+			final int size = timelines.size();
+			long threshold = Long.MIN_VALUE;
+			if(size > MAX_GRANTS) {
+				final long[] last = new long[size];
+				for(int i = 0; i < size; i++) {
+					last[i] = timelines.valueAt(i).last();
+				}
+				Arrays.sort(last);
+				threshold = last[size - MAX_GRANTS];
+			}
+			int count = Math.min(size, MAX_GRANTS);
+			out.putInt(count);
+			for(int pass = 0; pass < 2 && count > 0; pass++) {
+				for(int i = 0; i < size && count > 0; i++) {
+					final long last = timelines.valueAt(i).last();
+					if(pass == 0 ? last > threshold : last == threshold) {
+						out.putLong(timelines.keyAt(i));
+						out.putLong(last);
+						count--;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Write at most max entries of a uid map, keeping the largest values and breaking ties
+		 * by uid, so the same state always encodes to the same entries.
+		 */
+		private static void putLargest(ByteBuffer out, HashMap<Integer, Long> map, int max) {
+			out.putInt(Math.min(map.size(), max));
+			if(map.size() <= max) {
+				for(Map.Entry<Integer, Long> e : map.entrySet()) {
+					out.putInt(e.getKey());
+					out.putLong(e.getValue());
+				}
+				return;
+			}
+
+			ArrayList<Map.Entry<Integer, Long>> entries = new ArrayList<Map.Entry<Integer, Long>>(map.entrySet());
+			Collections.sort(entries, sLargestFirst);
+			for(int i = 0; i < max; i++) {
+				Map.Entry<Integer, Long> e = entries.get(i);
+				out.putInt(e.getKey());
+				out.putLong(e.getValue());
+			}
+		}
+
+		private void decodeLocked(ByteBuffer in) {
+			final MultiResourceManagerService s = mService;
+
+			s.mUsageTracker.decode(in);
+
+			int count = in.getInt();
+			for(int i = 0; i < count; i++) {
+				int uid = in.getInt();
+				s.restoreFocusLocked(uid, in.getLong(), false);
+			}
+
+			count = in.getInt();
+			for(int i = 0; i < count; i++) {
+				int uid = in.getInt();
+				s.mLastFocusTime.put(uid, in.getLong());
+			}
+
+			count = in.getInt();
+			for(int i = 0; i < count; i++) {
+				applyLocked(RECORD_GRANT, in.getLong(), in.getLong());
+			}
+		}
+
+		void dumpLocked(PrintWriter pw) {
+			pw.println("WarmState:");
+			pw.print("  generation="); pw.print(mGeneration);
+			pw.print(" tail="); pw.print(mTailCount); pw.print("/"); pw.println(TAIL_RECORDS);
+			pw.print("  records="); pw.print(mRecords);
+			pw.print(" dropped="); pw.print(mDropped);
+			pw.print(" avgRecordNs="); pw.println(mRecords == 0 ? 0 : mRecordNanos / mRecords);
+			pw.print("  checkpoints="); pw.print(mCheckpoints);
+			pw.print(" avgCheckpointUs="); pw.println(mCheckpoints == 0 ? 0 : mCheckpointNanos / mCheckpoints / 1000);
+			pw.print("  restoreUs="); pw.println(mRestoreNanos / 1000);
+		}
 	}
 
-	private class NotificationEvent {
-		int uid;
-		long time;
-		int hardware;
+	/**
+	 * One day's worth of event histories.
+	 */
+	private static final class History {
+		// Columns: end time, start time | reason.
+		final EventLog screenOn = new EventLog(HISTORY_LENGTH, 2, 1);
+		// Columns: time | uid.
+		final EventLog focus = new EventLog(HISTORY_LENGTH, 1, 1);
+		// Columns: time | uid, hardware.
+		final EventLog notifications = new EventLog(HISTORY_LENGTH, 1, 2);
+		// Grant history per hardware, created on its first grant. Columns: time | uid.
+		final EventLog[] grants = new EventLog[MultiResourceManager.MAX_HARDWARE];
+
+		EventLog grants(int hardware) {
+			if(grants[hardware] == null) {
+				grants[hardware] = new EventLog(HISTORY_LENGTH, 1, 1);
+			}
+			return grants[hardware];
+		}
+
+		void clear() {
+			screenOn.clear();
+			focus.clear();
+			notifications.clear();
+			for(int i = 0; i < grants.length; i++) {
+				if(grants[i] != null)	grants[i].clear();
+			}
+		}
+	}
+
+	/**
+	 * Fixed-capacity event history stored as parallel primitive columns.
+	 * Long column 0 is the event time; rows are appended in time order and the
+	 * oldest row is evicted in O(1) once the log is full. Without
+	 * EVENT_LENGTH_LIMIT the log grows instead of evicting.
+	 */
+	static final class EventLog {
+		private long[][] mLongs;
+		private int[][] mInts;
+		private int mCapacity;
+		private int mHead = 0;
+		private int mSize = 0;
+
+		public EventLog(int capacity, int longColumns, int intColumns) {
+			mCapacity = capacity;
+			mLongs = new long[longColumns][capacity];
+			mInts = new int[intColumns][capacity];
+		}
+
+		public int size() {
+			return mSize;
+		}
+
+		public void clear() {
+			mHead = 0;
+			mSize = 0;
+		}
+
+		private int row(int index) {
+			int r = mHead + index;
+			return r >= mCapacity ? r - mCapacity : r;
+		}
+
+		/**
+		 * Append an event and return its row for the set* calls.
+		 */
+		public int append(long time) {
+			if(mSize == mCapacity) {
+				if(EVENT_LENGTH_LIMIT) {
+					mHead = row(1);
+					mSize--;
+				} else {
+					grow();
+				}
+			}
+			int r = row(mSize);
+			mSize++;
+			mLongs[0][r] = time;
+			return r;
+		}
 
-		public NotificationEvent(int u, long t, int h) {
-			uid = u;
-			time = t;
-			hardware = h;
+		private void grow() {
+			final int capacity = mCapacity * 2;
+			for(int c = 0; c < mLongs.length; c++) {
+				long[] column = new long[capacity];
+				for(int i = 0; i < mSize; i++) {
+					column[i] = mLongs[c][row(i)];
+				}
+				mLongs[c] = column;
+			}
+			for(int c = 0; c < mInts.length; c++) {
+				int[] column = new int[capacity];
+				for(int i = 0; i < mSize; i++) {
+					column[i] = mInts[c][row(i)];
+				}
+				mInts[c] = column;
+			}
+			mHead = 0;
+			mCapacity = capacity;
 		}
 
-		public String toString() {
-			StringBuffer sb = new StringBuffer(32);
+		public void setLong(int row, int column, long value) {
+			mLongs[column][row] = value;
+		}
 
-			sb.append(time);
-			sb.append(" ");
+		public void setInt(int row, int column, int value) {
+			mInts[column][row] = value;
+		}
 
-			sb.append(uid);
-			sb.append(" ");
+		/**
+		 * Accessors by index in time order, 0 being the oldest.
+		 */
+		public long getTime(int index) {
+			return mLongs[0][row(index)];
+		}
 
-			sb.append(hardware);
-			sb.append(" ");
+		public long getLong(int index, int column) {
+			return mLongs[column][row(index)];
+		}
 
-			return sb.toString();
+		public int getInt(int index, int column) {
+			return mInts[column][row(index)];
+		}
+
+		/**
+		 * Return the index of the first event with time >= the given time, or size() if none.
+		 */
+		public int lowerBound(long time) {
+			int lo = 0, hi = mSize;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(getTime(mid) < time) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
 		}
 	}
 
@@ -623,28 +2509,42 @@ class MultiResourceManagerService extends IMultiResourceManagerService.Stub
 					if (Intent.ACTION_SCREEN_OFF.equals(action)) {
 						// Check mIsScreenOn to skip the first time screen off.
 						long t = System.currentTimeMillis();
-						ScreenEvent s = new ScreenEvent(mScreenOnReason, mScreenOnTime, t);
-						mAccumulatedScreenOnTime += t - mScreenOnTime;
-
-						if(mFocusEvent.size() > 0){
-							addUsageTime(t, mFocusEvent.get(mFocusEvent.size()-1));
+						if(mScreenOnTime > 0){
+							mUsageTracker.addScreenOn(t, t - mScreenOnTime);
+							if(mWarmState != null) {
+								mWarmState.logLocked(WarmState.RECORD_SCREEN, t - mScreenOnTime, t);
+							}
 						}
 
-						mScreenOn.add(s);
-						if(EVENT_LENGTH_LIMIT){
-							while(mScreenOn.size() > HISTORY_LENGTH){
-								mScreenOn.remove(0);
-							}
+						if(mFocusedUid != -1){
+							addUsageTime(t, mFocusedUid, mFocusedTime);
 						}
 
+						EventLog history = mHistory.screenOn;
+						int row = history.append(t);
+						history.setLong(row, 1, mScreenOnTime);
+						history.setInt(row, 0, mScreenOnReason);
+
 						mScreenOnReason = SCREEN_ON_DEFAULT;
 						mIsScreenOn = false;
+						if(mSnapshot != null) {
+							mSnapshot.setFlag(MultiResourceManager.StateSnapshot.FLAG_SCREEN_ON, false);
+						}
 						mAlarmManager.onScreenOff();
 						return;
 					} else if (Intent.ACTION_SCREEN_ON.equals(action)) {
 						mScreenOnTime = System.currentTimeMillis();
 						mIsScreenOn = true;
+						if(mSnapshot != null) {
+							mSnapshot.setFlag(MultiResourceManager.StateSnapshot.FLAG_SCREEN_ON, true);
+						}
 						mAlarmManager.onScreenOn();
+						if(mScreenWakeScheduler != null) {
+							mScreenWakeScheduler.screenOnLocked();
+						}
+						if(mAlertScheduler != null) {
+							mAlertScheduler.requestFlush(AlertScheduler.FLUSH_SCREEN_ON, 0);
+						}
 						return;
 					}
 				}
@@ -663,24 +2563,26 @@ class MultiResourceManagerService extends IMultiResourceManagerService.Stub
 		@Override
 			public void onReceive(Context context, Intent intent) {
 				synchronized (mLock) {
+					final int lastType = mNetworkType;
 					mNetworkType = getConnectivityStatus(context);
-					Log.i(TAG, "ConnectionChangeReceiver. networkType: " + mNetworkType);
-					Log.i(HOWARD_TAG, "ConnectionChangeReceiver. networkType: " + mNetworkType);
+					if(mSnapshot != null) {
+						mSnapshot.setNetworkType(mNetworkType);
+					}
+					if(lastType == MultiResourceManager.TYPE_NOT_CONNECTED
+							&& mNetworkType != MultiResourceManager.TYPE_NOT_CONNECTED
+							&& mAlertScheduler != null) {
+						mAlertScheduler.requestFlush(AlertScheduler.FLUSH_CONNECTIVITY, 0);
+					}
+					if(TRACE && mTraceLevel >= TRACE_LEVEL_EVENT) {
+						mTrace.add(TraceRing.NETWORK, -1, -1, mNetworkType);
+					}
 				}
 			}
 
 		private int getConnectivityStatus(Context context) {
 			ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
 
-			NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-			if (null != activeNetwork) {
-				if(activeNetwork.getType() == ConnectivityManager.TYPE_WIFI)
-					return MultiResourceManager.TYPE_WIFI;
-
-				if(activeNetwork.getType() == ConnectivityManager.TYPE_MOBILE)
-					return MultiResourceManager.TYPE_MOBILE;
-			} 
-			return MultiResourceManager.TYPE_NOT_CONNECTED;
+			return MultiResourceManager.getNetworkType(cm.getActiveNetworkInfo());
 		}
 	}	
 
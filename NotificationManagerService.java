@@ -2027,12 +2027,7 @@ public class NotificationManagerService extends INotificationManager.Stub
                             if ((audioManager.getStreamVolume(audioStreamType) != 0)
                                     && !audioManager.isAudioFocusExclusive()) {
 
-								try {
-                   					mrm.grant(callingUid, MultiResourceManager.HARDWARE_SOUND);
-                				} catch(Exception e) {
-                    				e.printStackTrace();
-                    				return;
-                				}
+								MultiResourceManager.reportGrant(callingUid, MultiResourceManager.HARDWARE_SOUND);
 								
                                 final long identity = Binder.clearCallingIdentity();
                                 try {
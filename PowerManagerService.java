@@ -636,7 +636,7 @@ public final class PowerManagerService extends IPowerManager.Stub
                         flags &= ~PowerManager.ACQUIRE_CAUSES_WAKEUP;
                     } else {
 						Slog.i(HOWARD_TAG, "grant(). hardware: SCREEN. Wakelock.");
-						mrm.grant(uid, MultiResourceManager.HARDWARE_SCREEN);
+						MultiResourceManager.reportGrant(uid, MultiResourceManager.HARDWARE_SCREEN);
 					}
                 } catch(Exception e) {
                     e.printStackTrace();
@@ -645,10 +645,9 @@ public final class PowerManagerService extends IPowerManager.Stub
             }
 
 			if((flags & PowerManager.ACQUIRE_CAUSES_WAKEUP) == 0 && !isScreenOn() && uid >= 10000){
-				IMultiResourceManagerService mrm = IMultiResourceManagerService.Stub.asInterface(ServiceManager.getService(Context.RESOURCE_MANAGER_SERVICE));
-
 				try {
-					if(!mrm.isUserPerceivable(uid)){
+					// Answered from the shared state snapshot, without a binder call.
+					if(!MultiResourceManager.isUserPerceivable(uid)){
 						return;
 					}
 				} catch(Exception e) {
@@ -23,7 +23,6 @@ import android.os.Looper;
 import android.os.MessageQueue;
 import android.os.ServiceManager;
 import android.os.MultiResourceManager;
-import android.os.IMultiResourceManagerService;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
@@ -119,13 +118,7 @@ public class SystemSensorManager extends SensorManager {
 
 			Log.i(HOWARD_TAG, String.format("registerListenerImpl(). Binder: %d. Sensor: %s. delayUs: %d. maxBatchReportLatencyUs: %d. ", callingUid, sensorName, delayUs, maxBatchReportLatencyUs));
 			if(sensor.getName().contains("MPU6515 Accelerometer")){
-				IMultiResourceManagerService mrm = IMultiResourceManagerService.Stub.asInterface(ServiceManager.getService(Context.RESOURCE_MANAGER_SERVICE));
-
-				try {
-					if(mrm != null)	mrm.grant(callingUid, MultiResourceManager.HARDWARE_SENSOR_ACC);
-				} catch(Exception e) {
-					e.printStackTrace();
-				}
+				MultiResourceManager.reportGrant(callingUid, MultiResourceManager.HARDWARE_SENSOR_ACC);
 			}
 
 			// Invariants to preserve:
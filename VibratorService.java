@@ -37,7 +37,6 @@ import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.Vibrator;
 import android.os.WorkSource;
-import android.os.IMultiResourceManagerService;
 import android.os.MultiResourceManager;
 import android.provider.Settings;
 import android.provider.Settings.SettingNotFoundException;
@@ -357,13 +356,7 @@ implements InputManager.InputDeviceListener {
 		} catch (RemoteException e) {
 		}
 
-		IMultiResourceManagerService mrm = IMultiResourceManagerService.Stub.asInterface(ServiceManager.getService(Context.RESOURCE_MANAGER_SERVICE));
-
-		try {
-			mrm.grant(vib.mUid, MultiResourceManager.HARDWARE_VIBRATION);
-		} catch(Exception e) {
-			e.printStackTrace();
-		}
+		MultiResourceManager.reportGrant(vib.mUid, MultiResourceManager.HARDWARE_VIBRATION);
 
 		if (vib.mTimeout != 0) {
 			doVibratorOn(vib.mTimeout, vib.mUid);
@@ -9447,15 +9447,15 @@ public class WindowManagerService extends IWindowManager.Stub
             IMultiResourceManagerService mrm = IMultiResourceManagerService.Stub.asInterface(ServiceManager.getService(Context.RESOURCE_MANAGER_SERVICE));
 
             try {
-                // if(!mrm.isServeScreen(mInnerFields.mHoldScreen.mUid)) {
-                //    
-                // } else {
+                // A deferred wake is performed later by the multi-resource manager.
+                final int uid = mCurrentFocus == null ? Process.SYSTEM_UID : mCurrentFocus.mOwnerUid;
+                if(mrm.isServeScreen(uid)) {
 					Slog.i(HOWARD_TAG, "grant(). hardware: SCREEN. WindowManager. " +
 						Binder.getCallingUid() + " " + (mHoldingScreenOn == null? 0 : mHoldingScreenOn.mUid)
-						+ " " + mCurrentUserId+ " " + (mCurrentFocus == null? 0 : mCurrentFocus.mOwnerUid));
-					mrm.grant(mCurrentFocus.mOwnerUid, MultiResourceManager.HARDWARE_SCREEN);
+						+ " " + mCurrentUserId+ " " + uid);
+					MultiResourceManager.reportGrant(uid, MultiResourceManager.HARDWARE_SCREEN);
 					mPowerManager.wakeUp(SystemClock.uptimeMillis());
-				// }
+				}
             } catch(Exception e) {
                 e.printStackTrace();
                 return;
@@ -5,6 +5,7 @@ OriPath="/home/howard/Nexus5/Nexus5Framework/ori/"
 
 # Custom system service
 MultiResourceManagerService=$AOSPPath"frameworks/base/services/java/com/android/server/MultiResourceManagerService.java"
+MultiResourceJournal=$AOSPPath"frameworks/base/services/java/com/android/server/MultiResourceJournal.java"
 IMultiResourceManagerService=$AOSPPath"frameworks/base/core/java/android/os/IMultiResourceManagerService.aidl"
 SystemServer=$AOSPPath"frameworks/base/services/java/com/android/server/SystemServer.java"
 Context=$AOSPPath"frameworks/base/core/java/android/content/Context.java"
@@ -28,6 +29,7 @@ LocationManagerService=$AOSPPath"frameworks/base/services/java/com/android/serve
 SystemSensorManager=$AOSPPath"frameworks/base/core/java/android/hardware/SystemSensorManager.java"
 
 rm -f $MultiResourceManagerService
+rm -f $MultiResourceJournal
 rm -f $IMultiResourceManagerService
 cp $OriPath"SystemServer.java" $SystemServer
 cp $OriPath"Context.java" $Context
@@ -5,6 +5,8 @@ AOSPPath="/home/howard/Nexus5/AOSP4.4.4/"
 # Add a system service
 MultiResourceManagerService=$AOSPPath"frameworks/base/services/java/com/android/server/MultiResourceManagerService.java"
 MultiResourceManagerServiceFolder=$AOSPPath"frameworks/base/services/java/com/android/server/"
+MultiResourceJournal=$AOSPPath"frameworks/base/services/java/com/android/server/MultiResourceJournal.java"
+MultiResourceJournalFolder=$AOSPPath"frameworks/base/services/java/com/android/server/"
 IMultiResourceManagerService=$AOSPPath"frameworks/base/core/java/android/os/IMultiResourceManagerService.aidl"
 IMultiResourceManagerServiceFolder=$AOSPPath"frameworks/base/core/java/android/os/"
 SystemServer=$AOSPPath"frameworks/base/services/java/com/android/server/SystemServer.java"
@@ -64,6 +66,14 @@ else
 	cp MultiResourceManagerService.java $MultiResourceManagerServiceFolder
 fi
 
+if diff $MultiResourceJournal MultiResourceJournal.java >/dev/null ; then
+	echo "MultiResourceJournal.java is same"
+else
+	echo "Copy MultiResourceJournal.java..."
+	rm -f $MultiResourceJournal
+	cp MultiResourceJournal.java $MultiResourceJournalFolder
+fi
+
 if diff $IMultiResourceManagerService IMultiResourceManagerService.aidl >/dev/null ; then
 	echo "IMultiResourceManagerService.aidl is same"
 else